@@ -0,0 +1,224 @@
+package processors;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * Chooses the cursor batch size so that a round trip carries about the target number of bytes
+ * and, when a target round trip is given, takes no longer than that.
+ * <p>
+ * Every cursor opened through {@link #open} measures the encoded size of the documents it
+ * decodes and the time spent waiting for them; when it is closed, those figures are folded into
+ * running averages. The batch size for the next cursor is the target bytes divided by the
+ * average document size, scaled down by how far the average round trip exceeds its target, and
+ * kept within the minimum and maximum. A batch size is fixed for the life of a
+ * cursor, so the size adapts from one window, partition or query to the next. Instances are
+ * shared between the worker threads of an export.
+ */
+class AdaptiveBatchSizer {
+    static final String BATCH_SIZE_ATTRIBUTE = "mongo.batch.size";
+    static final String DOCUMENT_SIZE_ATTRIBUTE = "mongo.batch.avg.document.bytes";
+    static final String ROUND_TRIP_ATTRIBUTE = "mongo.batch.avg.roundtrip.millis";
+    private static final double SMOOTHING = 0.5;
+
+    private final long targetBytes;
+    private final long targetRoundTripNanos;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private int batchSize;
+    private double averageDocumentSize;
+    private double averageRoundTripNanos;
+
+    /**
+     * @param targetRoundTripNanos the round trip time to stay under, or 0 for no limit
+     */
+    AdaptiveBatchSizer(long targetBytes, long targetRoundTripNanos, int minBatchSize, int maxBatchSize, int initialBatchSize) {
+        this.targetBytes = targetBytes;
+        this.targetRoundTripNanos = targetRoundTripNanos;
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.batchSize = Math.max(minBatchSize, Math.min(maxBatchSize, initialBatchSize));
+    }
+
+    synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * The figures the current batch size was chosen from, as flow file attributes.
+     */
+    synchronized Map<String, String> getAttributes() {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put(BATCH_SIZE_ATTRIBUTE, String.valueOf(batchSize));
+        if (averageDocumentSize > 0) {
+            attributes.put(DOCUMENT_SIZE_ATTRIBUTE, String.valueOf(Math.round(averageDocumentSize)));
+            attributes.put(ROUND_TRIP_ATTRIBUTE, String.format("%.1f", averageRoundTripNanos / 1e6));
+        }
+        return attributes;
+    }
+
+    synchronized void record(long documents, long bytes, long waitNanos, int usedBatchSize) {
+        if (documents == 0 || bytes == 0) {
+            return;
+        }
+        double documentSize = (double) bytes / documents;
+        double roundTripNanos = (double) waitNanos / ((documents + usedBatchSize - 1) / usedBatchSize);
+        if (averageDocumentSize == 0) {
+            averageDocumentSize = documentSize;
+            averageRoundTripNanos = roundTripNanos;
+        } else {
+            averageDocumentSize = SMOOTHING * documentSize + (1 - SMOOTHING) * averageDocumentSize;
+            averageRoundTripNanos = SMOOTHING * roundTripNanos + (1 - SMOOTHING) * averageRoundTripNanos;
+        }
+        long size = Math.round(targetBytes / averageDocumentSize);
+        if (targetRoundTripNanos > 0 && averageRoundTripNanos > targetRoundTripNanos) {
+            // a round trip takes about as long as the batch is big
+            size = Math.min(size, Math.round(usedBatchSize * targetRoundTripNanos / averageRoundTripNanos));
+        }
+        batchSize = (int) Math.max(minBatchSize, Math.min(maxBatchSize, size));
+    }
+
+    /**
+     * Opens a cursor through the given query, which is passed the collection to read and the batch
+     * size to use, and measures it.
+     */
+    MongoCursor<Document> open(MongoCollection<Document> collection, BiFunction<MongoCollection<Document>, Integer, MongoCursor<Document>> query) {
+        MeasuredCursor cursor;
+        synchronized (this) {
+            cursor = new MeasuredCursor(batchSize, getAttributes());
+        }
+        Codec<Document> codec = collection.getCodecRegistry().get(Document.class);
+        MongoCollection<Document> measured = collection.withCodecRegistry(CodecRegistries.fromRegistries(
+                CodecRegistries.fromCodecs(new MeasuringCodec(codec, cursor)), collection.getCodecRegistry()));
+        cursor.delegate = query.apply(measured, cursor.batchSize);
+        return cursor;
+    }
+
+    /**
+     * Returns the attributes describing the batch size of a cursor opened by {@link #open}, or
+     * no attributes for any other cursor.
+     */
+    static Map<String, String> attributesOf(MongoCursor<Document> cursor) {
+        return cursor instanceof MeasuredCursor ? ((MeasuredCursor) cursor).attributes : Collections.emptyMap();
+    }
+
+    /**
+     * Decodes top-level documents with the collection's own codec while adding up their encoded
+     * size. Embedded documents are decoded by that codec directly and not counted twice.
+     */
+    private static final class MeasuringCodec implements Codec<Document> {
+        private final Codec<Document> delegate;
+        private final MeasuredCursor cursor;
+
+        private MeasuringCodec(Codec<Document> delegate, MeasuredCursor cursor) {
+            this.delegate = delegate;
+            this.cursor = cursor;
+        }
+
+        @Override
+        public Document decode(BsonReader reader, DecoderContext decoderContext) {
+            if (!(reader instanceof BsonBinaryReader)) {
+                return delegate.decode(reader, decoderContext);
+            }
+            int start = ((BsonBinaryReader) reader).getBsonInput().getPosition();
+            Document document = delegate.decode(reader, decoderContext);
+            cursor.bytes += ((BsonBinaryReader) reader).getBsonInput().getPosition() - start;
+            return document;
+        }
+
+        @Override
+        public void encode(BsonWriter writer, Document value, EncoderContext encoderContext) {
+            delegate.encode(writer, value, encoderContext);
+        }
+
+        @Override
+        public Class<Document> getEncoderClass() {
+            return Document.class;
+        }
+    }
+
+    private final class MeasuredCursor implements MongoCursor<Document> {
+        private final int batchSize;
+        private final Map<String, String> attributes;
+        private MongoCursor<Document> delegate;
+        private long documents;
+        private long bytes;
+        private long waitNanos;
+        private boolean closed;
+
+        private MeasuredCursor(int batchSize, Map<String, String> attributes) {
+            this.batchSize = batchSize;
+            this.attributes = attributes;
+        }
+
+        @Override
+        public boolean hasNext() {
+            long start = System.nanoTime();
+            try {
+                return delegate.hasNext();
+            } finally {
+                waitNanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public Document next() {
+            long start = System.nanoTime();
+            try {
+                Document document = delegate.next();
+                documents++;
+                return document;
+            } finally {
+                waitNanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public Document tryNext() {
+            long start = System.nanoTime();
+            try {
+                Document document = delegate.tryNext();
+                if (document != null) {
+                    documents++;
+                }
+                return document;
+            } finally {
+                waitNanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            return delegate.getServerCursor();
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return delegate.getServerAddress();
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+            if (!closed) {
+                closed = true;
+                record(documents, bytes, waitNanos, batchSize);
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package processors;
+
+import org.apache.nifi.stream.io.ByteCountingOutputStream;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Counts the parts and bytes emitted through another sink and reports when a per-trigger
+ * budget is used up. A part is never cut short; the budget is checked between parts.
+ */
+class BoundedContentSink implements ContentSink {
+    private final ContentSink delegate;
+    private final Integer maxParts;
+    private final Long maxBytes;
+    private int parts;
+    private long bytes;
+
+    BoundedContentSink(ContentSink delegate, Integer maxParts, Long maxBytes) {
+        this.delegate = delegate;
+        this.maxParts = maxParts;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public boolean emit(PartWriter writer, Map<String, String> attributes) throws IOException {
+        final long[] written = new long[1];
+        boolean emitted = delegate.emit(out -> {
+            ByteCountingOutputStream counting = new ByteCountingOutputStream(out);
+            int count = writer.write(counting);
+            written[0] = counting.getBytesWritten();
+            return count;
+        }, attributes);
+        if (emitted) {
+            parts++;
+            bytes += written[0];
+        }
+        return emitted;
+    }
+
+    @Override
+    public boolean isFull() {
+        return (maxParts != null && parts >= maxParts) || (maxBytes != null && bytes >= maxBytes);
+    }
+}
@@ -0,0 +1,89 @@
+package processors;
+
+import com.mongodb.MongoClient;
+import org.bson.BsonBinaryReader;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads a stream of concatenated BSON documents, the application/bson content JsonProcessor
+ * writes. Each document carries its own length, so no framing is needed between them.
+ */
+public class BsonDocumentReader implements Iterator<Document>, Closeable {
+    private static final Codec<Document> CODEC = MongoClient.getDefaultCodecRegistry().get(Document.class);
+
+    private final DataInputStream in;
+    private final byte[] length = new byte[4];
+    private byte[] next;
+
+    public BsonDocumentReader(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    /**
+     * Returns the next document's bytes, or null at the end of the stream.
+     */
+    public byte[] readRaw() throws IOException {
+        int read = in.read(length);
+        if (read < 0) {
+            return null;
+        }
+        if (read < length.length) {
+            in.readFully(length, read, length.length - read);
+        }
+        int size = (length[0] & 0xff) | (length[1] & 0xff) << 8 | (length[2] & 0xff) << 16 | (length[3] & 0xff) << 24;
+        if (size < 5) {
+            throw new IOException("Invalid BSON document length " + size);
+        }
+        byte[] bytes = new byte[size];
+        System.arraycopy(length, 0, bytes, 0, length.length);
+        try {
+            in.readFully(bytes, length.length, size - length.length);
+        } catch (EOFException e) {
+            throw new IOException("BSON stream ended inside a document", e);
+        }
+        return bytes;
+    }
+
+    public static Document decode(byte[] bytes) {
+        return CODEC.decode(new BsonBinaryReader(ByteBuffer.wrap(bytes)), DecoderContext.builder().build());
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = readRaw();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Document next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        byte[] bytes = next;
+        next = null;
+        return decode(bytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,350 @@
+package processors;
+
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.type.ArrayDataType;
+import org.apache.nifi.serialization.record.type.ChoiceDataType;
+import org.apache.nifi.serialization.record.type.MapDataType;
+import org.apache.nifi.serialization.record.type.RecordDataType;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps BSON documents onto NiFi records value by value, without going through JSON.
+ * <p>
+ * ObjectIds become strings, dates timestamps, embedded documents nested records and arrays
+ * record arrays. Inferred schemas merge the fields of a sample of documents and make every
+ * field nullable, since MongoDB documents of a collection rarely all carry the same fields: a
+ * field seen with several types becomes a CHOICE of them, with numbers widened to the widest
+ * one seen, and a field only ever seen as null becomes a string.
+ */
+public class BsonRecordConverter {
+
+    /**
+     * The type of a field as inferred so far: null until a non-null value is seen, a CHOICE once
+     * values of incompatible types are seen.
+     */
+    static final class Inferred {
+        private RecordFieldType type;
+        private Map<String, Inferred> fields;
+        private Inferred element;
+        private List<Inferred> choices;
+
+        private void add(Object value) {
+            if (value == null) {
+                return;
+            }
+            if (choices != null) {
+                addChoice(value);
+                return;
+            }
+            RecordFieldType valueType = typeOf(value);
+            if (type == null) {
+                type = valueType;
+            } else if (type != valueType) {
+                RecordFieldType widened = widenNumber(type, valueType);
+                if (widened == null) {
+                    Inferred previous = new Inferred();
+                    previous.type = type;
+                    previous.fields = fields;
+                    previous.element = element;
+                    type = RecordFieldType.CHOICE;
+                    fields = null;
+                    element = null;
+                    choices = new ArrayList<>();
+                    choices.add(previous);
+                    addChoice(value);
+                    return;
+                }
+                type = widened;
+            }
+            if (type == RecordFieldType.RECORD) {
+                if (fields == null) {
+                    fields = new LinkedHashMap<>();
+                }
+                mergeFields(fields, fieldsOf((Map<?, ?>) value));
+            } else if (type == RecordFieldType.ARRAY) {
+                if (element == null) {
+                    element = new Inferred();
+                }
+                if (value instanceof List) {
+                    for (Object item : (List<?>) value) {
+                        element.add(item);
+                    }
+                } else {
+                    element.add((byte) 0);
+                }
+            }
+        }
+
+        private void addChoice(Object value) {
+            RecordFieldType valueType = typeOf(value);
+            for (Inferred choice : choices) {
+                if (choice.type == valueType || widenNumber(choice.type, valueType) != null) {
+                    choice.add(value);
+                    return;
+                }
+            }
+            Inferred choice = new Inferred();
+            choice.add(value);
+            choices.add(choice);
+        }
+
+        private DataType toDataType() {
+            if (type == null) {
+                return RecordFieldType.STRING.getDataType();
+            } else if (type == RecordFieldType.CHOICE) {
+                List<DataType> types = new ArrayList<>();
+                for (Inferred choice : choices) {
+                    types.add(choice.toDataType());
+                }
+                return RecordFieldType.CHOICE.getChoiceDataType(types);
+            } else if (type == RecordFieldType.RECORD) {
+                return RecordFieldType.RECORD.getRecordDataType(toSchema(fields, null));
+            } else if (type == RecordFieldType.ARRAY) {
+                return RecordFieldType.ARRAY.getArrayDataType(element.toDataType());
+            }
+            return type.getDataType();
+        }
+    }
+
+    private BsonRecordConverter() {
+    }
+
+    /**
+     * Infers a schema from the merged fields of the documents, followed by any top-level
+     * projected field none of them carries, typed as a string.
+     */
+    public static RecordSchema inferSchema(Iterable<? extends Map<String, ?>> documents, List<String> projectedFields) {
+        Map<String, Inferred> fields = new LinkedHashMap<>();
+        for (Map<String, ?> document : documents) {
+            mergeFields(fields, document);
+        }
+        return toSchema(fields, projectedFields);
+    }
+
+    /**
+     * Adds the fields of one more document to the fields inferred so far, widening their types.
+     */
+    static void mergeFields(Map<String, Inferred> fields, Map<String, ?> document) {
+        for (Map.Entry<String, ?> entry : document.entrySet()) {
+            fields.computeIfAbsent(entry.getKey(), name -> new Inferred()).add(entry.getValue());
+        }
+    }
+
+    static RecordSchema toSchema(Map<String, Inferred> inferred, List<String> projectedFields) {
+        List<RecordField> fields = new ArrayList<>();
+        for (Map.Entry<String, Inferred> entry : inferred.entrySet()) {
+            fields.add(new RecordField(entry.getKey(), entry.getValue().toDataType(), true));
+        }
+        if (projectedFields != null) {
+            for (String name : projectedFields) {
+                if (name.indexOf('.') < 0 && !inferred.containsKey(name)) {
+                    fields.add(new RecordField(name, RecordFieldType.STRING.getDataType(), true));
+                }
+            }
+        }
+        return new SimpleRecordSchema(fields);
+    }
+
+    private static RecordFieldType typeOf(Object value) {
+        if (value instanceof Boolean) {
+            return RecordFieldType.BOOLEAN;
+        } else if (value instanceof Byte) {
+            return RecordFieldType.BYTE;
+        } else if (value instanceof Integer) {
+            return RecordFieldType.INT;
+        } else if (value instanceof Long) {
+            return RecordFieldType.LONG;
+        } else if (value instanceof Double) {
+            return RecordFieldType.DOUBLE;
+        } else if (value instanceof Date) {
+            return RecordFieldType.TIMESTAMP;
+        } else if (value instanceof Binary || value instanceof byte[] || value instanceof List) {
+            return RecordFieldType.ARRAY;
+        } else if (value instanceof Map) {
+            return RecordFieldType.RECORD;
+        }
+        return RecordFieldType.STRING;
+    }
+
+    /**
+     * Copies an embedded document, whose keys are always strings, into a typed map.
+     */
+    private static Map<String, Object> fieldsOf(Map<?, ?> document) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> entry : document.entrySet()) {
+            fields.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        return fields;
+    }
+
+    /**
+     * Returns the wider of two numeric types, or null when either is not a number.
+     */
+    private static RecordFieldType widenNumber(RecordFieldType a, RecordFieldType b) {
+        List<RecordFieldType> widths = Arrays.asList(RecordFieldType.INT, RecordFieldType.LONG, RecordFieldType.DOUBLE);
+        if (!widths.contains(a) || !widths.contains(b)) {
+            return null;
+        }
+        return widths.get(Math.max(widths.indexOf(a), widths.indexOf(b)));
+    }
+
+    /**
+     * Builds a record of the given schema. Schema fields the document lacks are null; document
+     * fields the schema does not know, and values that fit none of their field's types, are
+     * left out and their dotted paths added to dropped.
+     */
+    public static Record toRecord(Map<String, ?> document, RecordSchema schema, Set<String> dropped) {
+        return toRecord(document, schema, "", dropped);
+    }
+
+    private static Record toRecord(Map<String, ?> document, RecordSchema schema, String prefix, Set<String> dropped) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (RecordField field : schema.getFields()) {
+            Object value = document.get(field.getFieldName());
+            if (value != null) {
+                values.put(field.getFieldName(), convert(value, field.getDataType(), prefix + field.getFieldName(), dropped));
+            }
+        }
+        for (String name : document.keySet()) {
+            if (!schema.getField(name).isPresent() && document.get(name) != null) {
+                dropped.add(prefix + name);
+            }
+        }
+        return new MapRecord(schema, values);
+    }
+
+    /**
+     * Whether a BSON value can be written as the type. Types an inferred schema never holds,
+     * such as those of a registry schema, are left to the Record Writer to convert.
+     */
+    private static boolean fits(Object value, DataType dataType) {
+        switch (dataType.getFieldType()) {
+            case STRING:
+                return true;
+            case BOOLEAN:
+                return value instanceof Boolean;
+            case INT:
+                return value instanceof Integer;
+            case LONG:
+                return value instanceof Integer || value instanceof Long;
+            case DOUBLE:
+                return value instanceof Integer || value instanceof Long || value instanceof Double;
+            case DATE:
+            case TIME:
+            case TIMESTAMP:
+                return value instanceof Date;
+            case ARRAY:
+                return value instanceof List || value instanceof Binary || value instanceof byte[];
+            case RECORD:
+            case MAP:
+                return value instanceof Map;
+            case CHOICE:
+                return chooseType(value, (ChoiceDataType) dataType) != null;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Picks the type of a CHOICE the value is written as: the first that fits it exactly, so
+     * that a string is only chosen for values of no other type.
+     */
+    private static DataType chooseType(Object value, ChoiceDataType choice) {
+        DataType fallback = null;
+        for (DataType type : choice.getPossibleSubTypes()) {
+            if (type.getFieldType() == RecordFieldType.STRING) {
+                fallback = fallback != null ? fallback : type;
+            } else if (fits(value, type)) {
+                return type;
+            }
+        }
+        return fallback;
+    }
+
+    private static Object convert(Object value, DataType dataType, String path, Set<String> dropped) {
+        if (value == null) {
+            return null;
+        }
+        if (dataType.getFieldType() == RecordFieldType.CHOICE) {
+            DataType chosen = chooseType(value, (ChoiceDataType) dataType);
+            if (chosen == null) {
+                dropped.add(path);
+                return null;
+            }
+            dataType = chosen;
+        } else if (!fits(value, dataType)) {
+            dropped.add(path);
+            return null;
+        }
+        RecordFieldType type = dataType.getFieldType();
+        if (value instanceof ObjectId) {
+            return ((ObjectId) value).toHexString();
+        } else if (value instanceof Date) {
+            long millis = ((Date) value).getTime();
+            if (type == RecordFieldType.DATE) {
+                return new java.sql.Date(millis);
+            } else if (type == RecordFieldType.TIME) {
+                return new Time(millis);
+            } else if (type == RecordFieldType.STRING) {
+                return JsonProcessor.formatDate((Date) value);
+            }
+            return new Timestamp(millis);
+        } else if (value instanceof Binary || value instanceof byte[]) {
+            byte[] bytes = value instanceof Binary ? ((Binary) value).getData() : (byte[]) value;
+            Byte[] boxed = new Byte[bytes.length];
+            for (int i = 0; i < bytes.length; i++) {
+                boxed[i] = bytes[i];
+            }
+            return boxed;
+        } else if (value instanceof Map) {
+            Map<String, Object> map = fieldsOf((Map<?, ?>) value);
+            if (type == RecordFieldType.RECORD) {
+                return toRecord(map, ((RecordDataType) dataType).getChildSchema(), path + ".", dropped);
+            } else if (type == RecordFieldType.MAP) {
+                DataType valueType = ((MapDataType) dataType).getValueType();
+                Map<String, Object> converted = new LinkedHashMap<>();
+                for (Map.Entry<String, ?> entry : map.entrySet()) {
+                    converted.put(entry.getKey(), convert(entry.getValue(), valueType, path + "." + entry.getKey(), dropped));
+                }
+                return converted;
+            }
+            return new Document(map).toJson();
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            if (type != RecordFieldType.ARRAY) {
+                return list.toString();
+            }
+            DataType elementType = ((ArrayDataType) dataType).getElementType();
+            Object[] converted = new Object[list.size()];
+            for (int i = 0; i < converted.length; i++) {
+                converted[i] = convert(list.get(i), elementType, path + "[]", dropped);
+            }
+            return converted;
+        } else if (type == RecordFieldType.STRING && !(value instanceof String)) {
+            return value.toString();
+        } else if (type == RecordFieldType.LONG) {
+            return ((Number) value).longValue();
+        } else if (type == RecordFieldType.DOUBLE) {
+            return ((Number) value).doubleValue();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,53 @@
+package processors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps parts in memory so they can be serialized on a worker thread and replayed into the
+ * session's sink afterwards. Meant for parts of bounded size, such as one batch of documents.
+ */
+class BufferedContentSink implements ContentSink {
+
+    private static final class Part {
+        private final byte[] content;
+        private final int count;
+        private final Map<String, String> attributes;
+
+        private Part(byte[] content, int count, Map<String, String> attributes) {
+            this.content = content;
+            this.count = count;
+            this.attributes = attributes;
+        }
+    }
+
+    private final List<Part> parts = new ArrayList<>();
+
+    @Override
+    public boolean emit(PartWriter writer, Map<String, String> attributes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int written = writer.write(out);
+        if (written == 0) {
+            return false;
+        }
+        parts.add(new Part(out.toByteArray(), written, new HashMap<>(attributes)));
+        return true;
+    }
+
+    /**
+     * Emits the buffered parts into another sink in the order they were emitted here.
+     */
+    void replayTo(ContentSink sink) throws IOException {
+        for (final Part part : parts) {
+            sink.emit(out -> {
+                out.write(part.content);
+                return part.count;
+            }, part.attributes);
+        }
+        parts.clear();
+    }
+}
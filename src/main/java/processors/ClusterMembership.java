@@ -0,0 +1,212 @@
+package processors;
+
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
+import org.apache.nifi.components.state.StateMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Shares the units of work of an export (windows, _id partitions or a plain query) between the
+ * nodes of a cluster through cluster state. Every node records its identifier with the time it
+ * last triggered; the nodes seen within the expiration are the members. The units belong to a
+ * run, whose plan is pinned in state by the first node to start it, and are claimed explicitly:
+ * a node takes its share of the units that are neither done nor claimed by a live member, so no
+ * two nodes export the same unit and the units of a node that stopped are taken over once it
+ * expires. All state changes go through {@link #update}, so concurrent nodes never overwrite
+ * each other's entries.
+ */
+class ClusterMembership {
+    static final String MEMBER_STATE_PREFIX = "member.";
+    static final String SIGNATURE_SUFFIX = ".signature";
+    static final String CLAIMS_SUFFIX = ".claims";
+    static final String DONE_SUFFIX = ".done";
+    private static final int MAX_ATTEMPTS = 20;
+
+    /**
+     * Applies a change to the cluster state with compare-and-set, re-reading and re-applying it
+     * until no other node wrote in between. Returns the state as stored. State that was never
+     * set (version -1) cannot be replaced, e.g. by the ZooKeeper provider, so the first change
+     * sets it.
+     */
+    static Map<String, String> update(StateManager stateManager, UnaryOperator<Map<String, String>> change) throws IOException {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            StateMap current = stateManager.getState(Scope.CLUSTER);
+            Map<String, String> updated = change.apply(new HashMap<>(current.toMap()));
+            if (current.getVersion() == -1) {
+                stateManager.setState(updated, Scope.CLUSTER);
+                return updated;
+            }
+            if (stateManager.replace(current, updated, Scope.CLUSTER)) {
+                return updated;
+            }
+        }
+        throw new IOException("Cluster state kept changing; gave up after " + MAX_ATTEMPTS + " attempts");
+    }
+
+    /**
+     * Records this node as alive and drops members not seen within the expiration.
+     */
+    static void register(StateManager stateManager, String nodeId, long expirationMillis) throws IOException {
+        final long now = System.currentTimeMillis();
+        update(stateManager, current -> {
+            current.put(MEMBER_STATE_PREFIX + nodeId, String.valueOf(now));
+            Iterator<Map.Entry<String, String>> entries = current.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                if (entry.getKey().startsWith(MEMBER_STATE_PREFIX) && now - Long.parseLong(entry.getValue()) > expirationMillis) {
+                    entries.remove();
+                }
+            }
+            return current;
+        });
+    }
+
+    /**
+     * Returns the state holding the named run with the given signature, starting it with the
+     * planned keys (which must start with the run name) unless it is there already. The plan is
+     * only computed when the run is started.
+     */
+    static Map<String, String> startRun(StateManager stateManager, final String run, final String signature, Supplier<Map<String, String>> plan) throws IOException {
+        Map<String, String> state = stateManager.getState(Scope.CLUSTER).toMap();
+        if (signature.equals(state.get(run + SIGNATURE_SUFFIX))) {
+            return state;
+        }
+        final Map<String, String> planned = plan.get();
+        return update(stateManager, current -> {
+            if (!signature.equals(current.get(run + SIGNATURE_SUFFIX))) {
+                removeRun(current, run);
+                current.putAll(planned);
+                current.put(run + SIGNATURE_SUFFIX, signature);
+            }
+            return current;
+        });
+    }
+
+    /**
+     * Claims this node's share of the units of the run that are neither done nor claimed by a
+     * live member, keeping those it claimed before, and returns all the units it holds, in
+     * order. The share is the units not done divided among the live members, rounded up.
+     * Returns nothing once the state holds another run.
+     */
+    static List<Integer> claim(StateManager stateManager, final String run, final String signature, final String nodeId, final int unitCount, final long expirationMillis) throws IOException {
+        final long now = System.currentTimeMillis();
+        final List<Integer> held = new ArrayList<>();
+        update(stateManager, current -> {
+            held.clear();
+            if (!signature.equals(current.get(run + SIGNATURE_SUFFIX))) {
+                return current;
+            }
+            Set<Integer> done = doneUnits(current, run);
+            Map<Integer, String> claims = parseClaims(current.get(run + CLAIMS_SUFFIX));
+            Set<String> members = new HashSet<>();
+            members.add(nodeId);
+            for (Map.Entry<String, String> entry : current.entrySet()) {
+                if (entry.getKey().startsWith(MEMBER_STATE_PREFIX) && now - Long.parseLong(entry.getValue()) <= expirationMillis) {
+                    members.add(entry.getKey().substring(MEMBER_STATE_PREFIX.length()));
+                }
+            }
+            int share = (unitCount - done.size() + members.size() - 1) / members.size();
+            for (int unit = 0; unit < unitCount; unit++) {
+                if (!done.contains(unit) && nodeId.equals(claims.get(unit))) {
+                    held.add(unit);
+                }
+            }
+            for (int unit = 0; unit < unitCount && held.size() < share; unit++) {
+                String owner = claims.get(unit);
+                if (!done.contains(unit) && (owner == null || !members.contains(owner))) {
+                    claims.put(unit, nodeId);
+                    held.add(unit);
+                }
+            }
+            current.put(run + CLAIMS_SUFFIX, formatClaims(claims));
+            return current;
+        });
+        Collections.sort(held);
+        return held;
+    }
+
+    /**
+     * Marks units of the run done and releases this node's claims on the units that failed, so
+     * that any node may retry them. Once every unit is done the run is removed, and the next
+     * trigger starts a new one. Does nothing once the state holds another run.
+     */
+    static void complete(StateManager stateManager, final String run, final String signature, final String nodeId, final Collection<Integer> exported, final Collection<Integer> failed, final int unitCount) throws IOException {
+        update(stateManager, current -> {
+            if (!signature.equals(current.get(run + SIGNATURE_SUFFIX))) {
+                return current;
+            }
+            Set<Integer> done = doneUnits(current, run);
+            done.addAll(exported);
+            if (done.size() >= unitCount) {
+                removeRun(current, run);
+                return current;
+            }
+            Map<Integer, String> claims = parseClaims(current.get(run + CLAIMS_SUFFIX));
+            for (Integer unit : exported) {
+                claims.remove(unit);
+            }
+            for (Integer unit : failed) {
+                claims.remove(unit, nodeId);
+            }
+            current.put(run + CLAIMS_SUFFIX, formatClaims(claims));
+            current.put(run + DONE_SUFFIX, formatUnits(done));
+            return current;
+        });
+    }
+
+    static Set<Integer> doneUnits(Map<String, String> state, String run) {
+        Set<Integer> done = new TreeSet<>();
+        String units = state.get(run + DONE_SUFFIX);
+        if (units != null && !units.isEmpty()) {
+            for (String unit : units.split(",")) {
+                done.add(Integer.valueOf(unit));
+            }
+        }
+        return done;
+    }
+
+    private static void removeRun(Map<String, String> state, String run) {
+        state.keySet().removeIf(key -> key.startsWith(run + "."));
+    }
+
+    private static Map<Integer, String> parseClaims(String claims) {
+        Map<Integer, String> parsed = new TreeMap<>();
+        if (claims != null && !claims.isEmpty()) {
+            for (String claim : claims.split(",")) {
+                int separator = claim.indexOf('=');
+                parsed.put(Integer.valueOf(claim.substring(0, separator)), claim.substring(separator + 1));
+            }
+        }
+        return parsed;
+    }
+
+    private static String formatClaims(Map<Integer, String> claims) {
+        StringBuilder formatted = new StringBuilder();
+        for (Map.Entry<Integer, String> claim : claims.entrySet()) {
+            formatted.append(formatted.length() > 0 ? "," : "").append(claim.getKey()).append('=').append(claim.getValue());
+        }
+        return formatted.toString();
+    }
+
+    private static String formatUnits(Set<Integer> units) {
+        StringBuilder formatted = new StringBuilder();
+        for (Integer unit : units) {
+            formatted.append(formatted.length() > 0 ? "," : "").append(unit);
+        }
+        return formatted.toString();
+    }
+}
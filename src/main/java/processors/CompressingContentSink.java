@@ -0,0 +1,43 @@
+package processors;
+
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Compresses every part on its way into another sink. The part's mime.type is replaced by the
+ * compressed format's and the format is recorded in the compression attribute.
+ */
+class CompressingContentSink implements ContentSink {
+    static final String COMPRESSION_ATTRIBUTE = "compression";
+
+    private final ContentSink delegate;
+    private final String format;
+    private final int level;
+
+    CompressingContentSink(ContentSink delegate, String format, int level) {
+        this.delegate = delegate;
+        this.format = format;
+        this.level = level;
+    }
+
+    @Override
+    public boolean emit(PartWriter writer, Map<String, String> attributes) throws IOException {
+        return delegate.emit(out -> {
+            int count;
+            try (OutputStream compressed = OutputCompression.wrap(out, format, level)) {
+                count = writer.write(compressed);
+            }
+            attributes.put(CoreAttributes.MIME_TYPE.key(), OutputCompression.mimeType(format));
+            attributes.put(COMPRESSION_ATTRIBUTE, format);
+            return count;
+        }, attributes);
+    }
+
+    @Override
+    public boolean isFull() {
+        return delegate.isFull();
+    }
+}
@@ -0,0 +1,35 @@
+package processors;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Destination for the flow file content produced while exporting a cursor. The export code only
+ * describes each output part; the sink decides whether it goes straight into the session or is
+ * spooled for a later, ordered transfer.
+ */
+interface ContentSink {
+
+    interface PartWriter {
+        /**
+         * Writes one part and returns the number of documents it holds.
+         */
+        int write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Emits one part, or discards it when the writer produced no documents. The attributes are
+     * applied once the writer has run, so the writer may still add to them.
+     *
+     * @return true if a part was emitted
+     */
+    boolean emit(PartWriter writer, Map<String, String> attributes) throws IOException;
+
+    /**
+     * Whether the caller should stop emitting and leave the rest of the cursor for later.
+     */
+    default boolean isFull() {
+        return false;
+    }
+}
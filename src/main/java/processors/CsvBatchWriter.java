@@ -0,0 +1,242 @@
+package processors;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Writes documents as CSV rows straight into a flow file's OutputStream.
+ * <p>
+ * The header is fixed once, either from an inclusive projection or from the union of the
+ * top-level fields of the first sampled documents (all of them for a sample size of 0), which
+ * are held in a {@link DocumentSpillBuffer} until the header is known. Every row is then written
+ * directly from the BSON values. Missing fields become empty cells, dotted header names are
+ * resolved through nested documents, and nested documents and arrays are written as compact JSON.
+ * Fields of later documents that a sampled header does not hold are left out and counted.
+ */
+public class CsvBatchWriter implements Closeable {
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+    private static final long SAMPLE_MEMORY_THRESHOLD = 8L * 1024 * 1024;
+
+    private final Writer writer;
+    private final StandardJsonCodec codec;
+    private final int sampleSize;
+    private final Set<String> sampledFields = new LinkedHashSet<>();
+    private final Set<String> droppedFields = new TreeSet<>();
+    private DocumentSpillBuffer sample;
+    private List<String> header;
+    private boolean headerWritten;
+    private int count;
+    private int droppedCount;
+
+    public CsvBatchWriter(OutputStream out, StandardJsonCodec codec, List<String> header, int sampleSize) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        this.codec = codec;
+        this.header = header;
+        this.sampleSize = sampleSize > 0 ? sampleSize : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns the header implied by an inclusive projection, or null when the projection is
+     * missing or only excludes fields and the header has to be sampled from the documents.
+     */
+    public static List<String> headerFromProjection(Document projection) {
+        if (projection == null) {
+            return null;
+        }
+        List<String> fields = new ArrayList<>();
+        boolean excludeId = false;
+        for (Map.Entry<String, Object> entry : projection.entrySet()) {
+            boolean included = isIncluded(entry.getValue());
+            if (entry.getKey().equals("_id")) {
+                excludeId = !included;
+            } else if (included) {
+                fields.add(entry.getKey());
+            }
+        }
+        if (fields.isEmpty()) {
+            return null;
+        }
+        if (!excludeId) {
+            fields.add(0, "_id");
+        }
+        return fields;
+    }
+
+    static boolean isIncluded(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue() != 0;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return value != null;
+    }
+
+    public void write(Document document) throws IOException {
+        if (header == null) {
+            if (sample == null) {
+                sample = new DocumentSpillBuffer(SAMPLE_MEMORY_THRESHOLD);
+            }
+            sample.add(document);
+            sampledFields.addAll(document.keySet());
+            if (sample.size() >= sampleSize) {
+                closeSample();
+            }
+        } else {
+            writeRow(document);
+        }
+        count++;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the encoded size of the documents held back until the header is known.
+     */
+    long getSampledBytes() {
+        return sample != null ? sample.getBytes() : 0;
+    }
+
+    /**
+     * Returns how many rows left out fields that the sampled header does not hold.
+     */
+    int getDroppedCount() {
+        return droppedCount;
+    }
+
+    Set<String> getDroppedFields() {
+        return droppedFields;
+    }
+
+    /**
+     * Fixes the header from the documents sampled so far and writes them out.
+     */
+    void closeSample() throws IOException {
+        if (sample == null) {
+            return;
+        }
+        header = new ArrayList<>(sampledFields);
+        try {
+            for (Iterator<Document> documents = sample.iterator(); documents.hasNext(); ) {
+                writeRow(documents.next());
+            }
+        } finally {
+            sample.close();
+            sample = null;
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        for (int i = 0; i < header.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeCell(header.get(i));
+        }
+        writer.write('\n');
+    }
+
+    private void writeRow(Document document) throws IOException {
+        if (!headerWritten) {
+            writeHeader();
+            headerWritten = true;
+        }
+        for (int i = 0; i < header.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            Object value = resolve(document, header.get(i));
+            if (value != null) {
+                writeCell(toText(value, codec));
+            }
+        }
+        writer.write('\n');
+        if (!sampledFields.isEmpty() && !sampledFields.containsAll(document.keySet())) {
+            for (String field : document.keySet()) {
+                if (!sampledFields.contains(field)) {
+                    droppedFields.add(field);
+                }
+            }
+            droppedCount++;
+        }
+    }
+
+    static Object resolve(Document document, String field) {
+        if (document.containsKey(field) || field.indexOf('.') < 0) {
+            return document.get(field);
+        }
+        Object current = document;
+        for (String part : field.split("\\.")) {
+            if (!(current instanceof Map)) {
+                return null;
+            }
+            current = ((Map) current).get(part);
+        }
+        return current;
+    }
+
+    static String toText(Object value, StandardJsonCodec codec) throws IOException {
+        if (value instanceof String) {
+            return (String) value;
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            return value.toString();
+        }
+        if (value instanceof Date) {
+            return DATE_FORMAT.format(((Date) value).toInstant());
+        }
+        if (value instanceof ObjectId) {
+            return ((ObjectId) value).toHexString();
+        }
+        return codec.toJson(value);
+    }
+
+    private void writeCell(String text) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < text.length() && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            writer.write(text);
+            return;
+        }
+        writer.write('"');
+        writer.write(text.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (header == null) {
+                closeSample();
+            }
+            writer.flush();
+        } finally {
+            if (sample != null) {
+                sample.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package processors;
+
+import com.jayway.jsonpath.Configuration;
+import com.jayway.jsonpath.InvalidPathException;
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.Option;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Flow file attributes read from the exported document itself. Each attribute has a path that
+ * is either a JsonPath (starting with $) or a BSON dotted field path; paths are compiled once
+ * and evaluated on the decoded Document, so nothing has to parse the written content. A path
+ * that matches nothing sets no attribute; scalars are written as in CSV cells and documents or
+ * arrays as compact JSON.
+ */
+class DocumentAttributes {
+    private static final Configuration JSON_PATH_CONFIGURATION = Configuration.defaultConfiguration().addOptions(Option.SUPPRESS_EXCEPTIONS);
+
+    static final Validator PATH_VALIDATOR = (subject, value, context) -> {
+        ValidationResult.Builder builder = new ValidationResult.Builder().subject(subject).input(value);
+        try {
+            compile(value);
+            return builder.valid(true).build();
+        } catch (InvalidPathException | IllegalArgumentException e) {
+            return builder.valid(false).explanation("not a valid JsonPath or field path: " + e.getLocalizedMessage()).build();
+        }
+    };
+
+    private final Map<String, Function<Document, Object>> paths = new LinkedHashMap<>();
+
+    void add(String attribute, String path) {
+        paths.put(attribute, compile(path));
+    }
+
+    boolean isEmpty() {
+        return paths.isEmpty();
+    }
+
+    private static Function<Document, Object> compile(String path) {
+        if (path == null || path.trim().isEmpty()) {
+            throw new IllegalArgumentException("the path is empty");
+        }
+        if (path.startsWith("$")) {
+            JsonPath jsonPath = JsonPath.compile(path);
+            return document -> jsonPath.read(document, JSON_PATH_CONFIGURATION);
+        }
+        return document -> CsvBatchWriter.resolve(document, path);
+    }
+
+    void extract(Document document, StandardJsonCodec codec, Map<String, String> attributes) throws IOException {
+        for (Map.Entry<String, Function<Document, Object>> path : paths.entrySet()) {
+            Object value = path.getValue().apply(document);
+            if (value != null) {
+                attributes.put(path.getKey(), CsvBatchWriter.toText(value, codec));
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package processors;
+
+import com.mongodb.MongoClient;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * Holds documents that have to be seen in full before any of them can be written, e.g. to infer
+ * a CSV header. Documents are kept as BSON in memory up to a byte threshold and in a temporary
+ * file beyond it, so the amount buffered is bounded by disk rather than heap.
+ */
+class DocumentSpillBuffer implements Closeable {
+    private static final Codec<Document> CODEC = MongoClient.getDefaultCodecRegistry().get(Document.class);
+
+    private final long memoryThreshold;
+    private final BasicOutputBuffer encoded = new BasicOutputBuffer();
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private OutputStream out = memory;
+    private File file;
+    private Closeable reading;
+    private int size;
+    private long bytes;
+
+    DocumentSpillBuffer(long memoryThreshold) {
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    void add(Document document) throws IOException {
+        encoded.truncateToPosition(0);
+        CODEC.encode(new BsonBinaryWriter(encoded), document, EncoderContext.builder().build());
+        if (file == null && memory.size() + encoded.getSize() > memoryThreshold) {
+            file = File.createTempFile("mongo-export", ".spill");
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            memory.writeTo(out);
+            memory = null;
+        }
+        encoded.pipe(out);
+        size++;
+        bytes += encoded.getSize();
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the encoded size of the documents added.
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Reads the buffered documents back in the order they were added. No more documents may be
+     * added once reading has started.
+     */
+    Iterator<Document> iterator() throws IOException {
+        out.flush();
+        BsonDocumentReader reader = new BsonDocumentReader(file != null ? new BufferedInputStream(new FileInputStream(file)) : new ByteArrayInputStream(memory.toByteArray()));
+        reading = reader;
+        return reader;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void close() {
+        if (reading != null) {
+            closeQuietly(reading);
+            reading = null;
+        }
+        if (file != null) {
+            closeQuietly(out);
+            file.delete();
+            file = null;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package processors;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.bson.Document;
+import org.bson.json.JsonWriterSettings;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes documents straight into a flow file's OutputStream through one reused JsonGenerator,
+ * so a batch is never materialised as a String before it reaches the content repository.
+ */
+public class JsonBatchWriter implements Closeable {
+    private final JsonGenerator generator;
+    private final StandardJsonCodec standardCodec;
+    private final JsonWriterSettings extendedSettings;
+    private int count;
+
+    public JsonBatchWriter(OutputStream out, StandardJsonCodec codec, String jsonTypeSetting, boolean prettyPrint) throws IOException {
+        this.generator = codec.createGenerator(out);
+        this.generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        if (prettyPrint) {
+            this.generator.useDefaultPrettyPrinter();
+        }
+        if (jsonTypeSetting.equals(JsonProcessor.JSON_TYPE_STANDARD)) {
+            this.standardCodec = codec;
+            this.extendedSettings = null;
+        } else {
+            this.standardCodec = null;
+            this.extendedSettings = new JsonWriterSettings(prettyPrint);
+        }
+    }
+
+    public void writeStartArray() throws IOException {
+        generator.writeStartArray();
+    }
+
+    public void writeEndArray() throws IOException {
+        generator.writeEndArray();
+    }
+
+    public void write(Document document) throws IOException {
+        if (standardCodec != null) {
+            standardCodec.write(generator, document);
+        } else {
+            generator.writeRawValue(document.toJson(extendedSettings));
+        }
+        count++;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        generator.close();
+    }
+}
@@ -1,48 +1,69 @@
 package processors;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import com.mongodb.MongoClient;
+import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoIterable;
+import com.mongodb.client.model.CountOptions;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.text.DateFormat;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.nifi.annotation.behavior.*;
 import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.components.Validator;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
 import org.apache.nifi.components.ValidationResult.Builder;
-import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
-import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.processors.mongodb.AbstractMongoProcessor;
-import org.apache.nifi.processors.mongodb.ObjectIdSerializer;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.stream.io.ByteCountingOutputStream;
 
+import org.bson.BsonValue;
+import org.bson.ByteBuf;
 import org.bson.Document;
-import org.bson.json.JsonWriterSettings;
-import org.json.CDL;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.types.ObjectId;
 
 
 @Tags({"mongodb", "read", "get", "cdp"})
 @InputRequirement(Requirement.INPUT_FORBIDDEN)
+@TriggerSerially
+@Stateful(scopes = Scope.CLUSTER, description = "When Use Watermark is enabled, stores the end of the last committed incremental window per incremental field. "
+        + "A partitioned scan stores its _id split points and the partitions already committed. With Cluster Partitioning, each node stores when it last triggered.")
 @CapabilityDescription("Get mongo v2 cdp, result CSV or Json Array")
+@DynamicProperty(name = "An attribute name", value = "A JsonPath starting with $, or a dotted field path",
+        description = "When each flow file holds a single document, sets the attribute to the value the path selects in that document")
 public class JsonProcessor extends AbstractMongoProcessor {
     public static final Validator DOCUMENT_VALIDATOR = (subject, value, context) -> {
         Builder builder = new Builder();
@@ -61,39 +82,106 @@ public class JsonProcessor extends AbstractMongoProcessor {
             return builder.explanation(reason).valid(reason == null).build();
         }
     };
+    public static final Validator PIPELINE_VALIDATOR = (subject, value, context) -> {
+        Builder builder = new Builder();
+        builder.subject(subject).input(value);
+        if (context.isExpressionLanguageSupported(subject) && context.isExpressionLanguagePresent(value)) {
+            return builder.valid(true).explanation("Contains Expression Language").build();
+        }
+        String reason = null;
+        try {
+            parsePipeline(value);
+        } catch (RuntimeException e) {
+            reason = e.getLocalizedMessage();
+        }
+        return builder.explanation(reason).valid(reason == null).build();
+    };
     static final Relationship REL_SUCCESS = (new org.apache.nifi.processor.Relationship.Builder()).name("success").description("All files are routed to success").build();
     static final PropertyDescriptor QUERY;
 
     static final PropertyDescriptor PROJECTION;
     static final PropertyDescriptor SORT;
+    static final PropertyDescriptor PIPELINE;
+    static final PropertyDescriptor ALLOW_DISK_USE;
+    static final PropertyDescriptor INDEX_HINT;
+    static final PropertyDescriptor COVERED_PROJECTION;
+    static final String PLAN_CHECK_OFF = "off";
+    static final String PLAN_CHECK_WARN = "warn";
+    static final String PLAN_CHECK_FAIL = "fail";
+    static final PropertyDescriptor PLAN_CHECK;
     static final PropertyDescriptor LIMIT;
     static final PropertyDescriptor BATCH_SIZE;
+    static final PropertyDescriptor ADAPTIVE_BATCH_SIZE;
+    static final PropertyDescriptor TARGET_BATCH_BYTES;
+    static final PropertyDescriptor TARGET_ROUND_TRIP;
+    static final PropertyDescriptor MIN_BATCH_SIZE;
+    static final PropertyDescriptor MAX_BATCH_SIZE;
     static final PropertyDescriptor RESULTS_PER_FLOWFILE;
+    static final PropertyDescriptor MAX_FLOWFILE_SIZE;
+    static final PropertyDescriptor SERIALIZER_THREADS;
+    static final int PREFETCH_DOCUMENTS = 1024;
+    static final String FRAGMENT_INDEX_ATTRIBUTE = "fragment.index";
 
     static final String JSON_TYPE_EXTENDED = "Extended";
     static final String JSON_TYPE_STANDARD = "Standard";
     static final AllowableValue JSON_EXTENDED;
     static final AllowableValue JSON_STANDARD;
     static final PropertyDescriptor JSON_TYPE;
+    static final PropertyDescriptor PRETTY_PRINT;
 
     //TruongLX
     static final String CSV_TYPE_RESULT = "text/csv";
     static final String JSON_TYPE_RESULT = "application/json";
+    static final String RECORD_TYPE_RESULT = "record";
+    static final String BSON_TYPE_RESULT = "application/bson";
     static final AllowableValue CSV_TYPE_RS;
     static final AllowableValue JSON_TYPE_RS;
+    static final AllowableValue RECORD_TYPE_RS;
+    static final AllowableValue BSON_TYPE_RS;
     static final DateFormat FORMAT_DATE = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    private static final Codec<Document> DOCUMENT_CODEC = MongoClient.getDefaultCodecRegistry().get(Document.class);
 
 
     static final PropertyDescriptor TYPE_RESULT_INCREMENTAL;
+    static final PropertyDescriptor RECORD_WRITER;
+    static final PropertyDescriptor RECORD_SCHEMA_SAMPLE_SIZE;
+    static final PropertyDescriptor OUTPUT_COMPRESSION;
+    static final PropertyDescriptor COMPRESSION_LEVEL;
+    static final PropertyDescriptor CSV_HEADER_SAMPLE_SIZE;
+    static final PropertyDescriptor WINDOW_PARALLELISM;
+    static final PropertyDescriptor USE_WATERMARK;
+    static final PropertyDescriptor WATERMARK_OVERLAP;
+    static final String WATERMARK_STATE_PREFIX = "watermark.";
+    static final PropertyDescriptor SCAN_PARTITIONS;
+    static final String SCAN_RUN = "scan";
+    static final String SCAN_BOUNDS_STATE = "scan.bounds";
+    static final String WINDOWS_RUN = "windows";
+    static final String WINDOWS_PLAN_STATE = "windows.plan";
+    static final String QUERY_RUN = "query";
+    static final int SAMPLES_PER_PARTITION = 20;
+    static final PropertyDescriptor CLUSTER_PARTITIONING;
+    static final PropertyDescriptor NODE_IDENTIFIER;
+    static final PropertyDescriptor NODE_EXPIRATION;
+    static final PropertyDescriptor MAX_FLOWFILES_PER_TRIGGER;
+    static final PropertyDescriptor MAX_BYTES_PER_TRIGGER;
     static final PropertyDescriptor FROM_DATE;
     static final PropertyDescriptor TO_DATE;
     static final PropertyDescriptor RANGE_INCREMENTAL;
+    static final PropertyDescriptor MAX_WINDOW_DOCUMENTS;
+    static final PropertyDescriptor MIN_WINDOW_DURATION;
     static final PropertyDescriptor QUERY_INCREMENTAL;
 
     //========================
     private static final Set<Relationship> relationships;
     private static final List<PropertyDescriptor> propertyDescriptors;
-    private ObjectMapper mapper;
+    private volatile StandardJsonCodec codec;
+    private volatile ExecutorService executor;
+    private volatile ExecutorService prefetchExecutor;
+    private volatile ExecutorService serializerExecutor;
+    private volatile ExportRun run;
+    private volatile AdaptiveBatchSizer batchSizer;
+    private volatile DocumentAttributes attributes;
+    private volatile Document coveredProjection;
 
     public JsonProcessor() {
     }
@@ -106,433 +194,1366 @@ public class JsonProcessor extends AbstractMongoProcessor {
         return propertyDescriptors;
     }
 
-    private String buildBatch(List<Document> documents, String jsonTypeSetting) throws IOException {
-        StringBuilder builder = new StringBuilder();
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(String propertyDescriptorName) {
+        return (new PropertyDescriptor.Builder()).name(propertyDescriptorName).description("The path of the value to put in the " + propertyDescriptorName + " attribute").required(false).dynamic(true).expressionLanguageSupported(false).addValidator(DocumentAttributes.PATH_VALIDATOR).build();
+    }
+
+    /**
+     * Whether a part that has written this many bytes may take another document. Writers buffer,
+     * so a part can exceed maxBytes by up to a buffer.
+     */
+    private static boolean hasRoom(ByteCountingOutputStream counting, long maxBytes) {
+        return maxBytes <= 0 || counting.getBytesWritten() < maxBytes;
+    }
+
+    private static int writeJson(OutputStream out, Iterator<Document> cursor, int ceiling, long maxBytes, StandardJsonCodec codec, String jsonTypeSetting, boolean prettyPrint) throws IOException {
+        ByteCountingOutputStream counting = new ByteCountingOutputStream(out);
+        try (JsonBatchWriter writer = new JsonBatchWriter(counting, codec, jsonTypeSetting, prettyPrint)) {
+            writer.writeStartArray();
+            while ((ceiling <= 0 || writer.getCount() < ceiling) && hasRoom(counting, maxBytes) && cursor.hasNext()) {
+                writer.write(cursor.next());
+            }
+            writer.writeEndArray();
+            return writer.getCount();
+        }
+    }
+
+    private static int writeCsv(OutputStream out, MongoCursor<Document> cursor, long maxBytes, StandardJsonCodec codec, List<String> header, int sampleSize, ComponentLog logger) throws IOException {
+        ByteCountingOutputStream counting = new ByteCountingOutputStream(out);
+        try (CsvBatchWriter writer = new CsvBatchWriter(counting, codec, header, sampleSize)) {
+            while (hasRoom(counting, maxBytes) && cursor.hasNext()) {
+                writer.write(cursor.next());
+                if (maxBytes > 0 && writer.getSampledBytes() >= maxBytes) {
+                    writer.closeSample();
+                }
+            }
+            if (writer.getDroppedCount() > 0) {
+                logger.warn("{} of {} CSV rows left out fields that are not in the sampled header: {}; raise CSV Header Sample Size or set an inclusive Projection",
+                        new Object[]{writer.getDroppedCount(), writer.getCount(), writer.getDroppedFields()});
+            }
+            return writer.getCount();
+        }
+    }
+
+    private static int writeRecords(OutputStream out, Iterator<Document> documents, int ceiling, long maxBytes, ExportSettings settings, ComponentLog logger, Map<String, String> attributes) throws IOException {
+        ByteCountingOutputStream counting = new ByteCountingOutputStream(out);
+        try (RecordBatchWriter writer = new RecordBatchWriter(counting, settings.recordWriterFactory, logger, settings.recordFields, attributes, settings.recordSampleSize)) {
+            while ((ceiling <= 0 || writer.getCount() < ceiling) && hasRoom(counting, maxBytes) && documents.hasNext()) {
+                writer.write(documents.next());
+                if (maxBytes > 0 && writer.getSampledBytes() >= maxBytes) {
+                    writer.closeSample();
+                }
+            }
+            attributes.putAll(writer.finish());
+            return writer.getCount();
+        }
+    }
+
+    private static int writeBson(OutputStream out, Iterator<RawBsonDocument> documents, int ceiling, long maxBytes) throws IOException {
+        int count = 0;
+        long bytes = 0;
+        while ((ceiling <= 0 || count < ceiling) && (maxBytes <= 0 || bytes < maxBytes) && documents.hasNext()) {
+            ByteBuf buffer = documents.next().getByteBuffer();
+            out.write(buffer.array(), buffer.position(), buffer.remaining());
+            bytes += buffer.remaining();
+            count++;
+        }
+        return count;
+    }
+
+    private static int writeDocument(OutputStream out, Document document, StandardJsonCodec codec, String jsonTypeSetting, boolean prettyPrint) throws IOException {
+        try (JsonBatchWriter writer = new JsonBatchWriter(out, codec, jsonTypeSetting, prettyPrint && jsonTypeSetting.equals(JSON_TYPE_STANDARD))) {
+            writer.write(document);
+            return writer.getCount();
+        }
+    }
+
+    static String formatDate(Date date) {
+        synchronized (FORMAT_DATE) {
+            return FORMAT_DATE.format(date);
+        }
+    }
+
+    static Date parseDate(String value) throws ParseException {
+        synchronized (FORMAT_DATE) {
+            return FORMAT_DATE.parse(value);
+        }
+    }
+
+    /**
+     * Everything needed to run and serialize a query, resolved once per trigger so that
+     * window workers never touch the ProcessContext.
+     */
+    static final class ExportSettings {
+        Document query;
+        Document projection;
+        Document sort;
+        List<Document> pipeline;
+        boolean allowDiskUse;
+        Integer limit;
+        Integer batchSize;
+        AdaptiveBatchSizer batchSizer;
+        Integer ceiling;
+        long maxFlowFileSize;
+        String incrementalField;
+        String resultType;
+        boolean rawBson;
+        String jsonTypeSetting;
+        boolean prettyPrint;
+        List<String> csvHeader;
+        int csvSampleSize;
+        StandardJsonCodec codec;
+        RecordSetWriterFactory recordWriterFactory;
+        List<String> recordFields;
+        int recordSampleSize;
+        String compression;
+        int compressionLevel;
+        String nodeId;
+        long nodeExpiration;
+        DocumentAttributes attributes;
+        int serializerThreads;
+        Object hint;
+        boolean noCursorTimeout;
+    }
+
+    static final class Window {
+        final Date from;
+        final Date to;
+        final int unit;
+
+        Window(Date from, Date to) {
+            this(from, to, 0);
+        }
+
+        Window(Date from, Date to, int unit) {
+            this.from = from;
+            this.to = to;
+            this.unit = unit;
+        }
 
-        for (int index = 0; index < documents.size(); ++index) {
-            Document document = (Document) documents.get(index);
-            String asJson;
-            if (jsonTypeSetting.equals("Standard")) {
-                asJson = this.mapper.writerWithDefaultPrettyPrinter().writeValueAsString(document);
+        @Override
+        public String toString() {
+            return "window starting " + formatDate(from);
+        }
+    }
+
+    /**
+     * A half-open [lower, upper) range of the _id keyspace; a null bound is unbounded. Ranges
+     * only match ids of the bounds' BSON type, so the last partition of a split scan instead
+     * holds every id of another type.
+     */
+    static final class Partition {
+        final int index;
+        final Object lower;
+        final Object upper;
+        final String otherThanType;
+
+        Partition(int index, Object lower, Object upper) {
+            this(index, lower, upper, null);
+        }
+
+        Partition(int index, Object lower, Object upper, String otherThanType) {
+            this.index = index;
+            this.lower = lower;
+            this.upper = upper;
+            this.otherThanType = otherThanType;
+        }
+
+        @Override
+        public String toString() {
+            return "_id partition " + index + (otherThanType != null ? " (ids not of type " + otherThanType + ")" : "");
+        }
+    }
+
+    private interface UnitExporter<T> {
+        void export(T unit, ContentSink sink) throws IOException;
+    }
+
+    /**
+     * The windows of one export (none for a plain query) and how far it has got. A bounded export
+     * keeps it, with the cursor of the current window, across triggers. Under Cluster
+     * Partitioning it also collects the claimed units finished since progress was last saved.
+     */
+    static final class ExportRun {
+        final ExportSettings settings;
+        final List<Window> windows;
+        final boolean useWatermark;
+        Date watermark;
+        Date completedUntil;
+        boolean contiguous = true;
+        int position;
+        MongoCursor<?> cursor;
+        final AtomicInteger fragments = new AtomicInteger();
+        String clusterRun;
+        String clusterSignature;
+        int unitCount;
+        final Set<Integer> finishedUnits = new TreeSet<>();
+        final Set<Integer> failedUnits = new TreeSet<>();
+
+        ExportRun(ExportSettings settings, List<Window> windows, boolean useWatermark, Date watermark) {
+            this.settings = settings;
+            this.windows = windows;
+            this.useWatermark = useWatermark;
+            this.watermark = watermark;
+        }
+
+        boolean isFinished() {
+            return position >= (windows != null ? windows.size() : 1);
+        }
+
+        Window currentWindow() {
+            return windows != null ? windows.get(position) : null;
+        }
+
+        void completeUnit(boolean exported) {
+            int unit = 0;
+            boolean lastOfUnit = true;
+            if (windows != null) {
+                contiguous &= exported;
+                if (contiguous) {
+                    completedUntil = windows.get(position).to;
+                }
+                unit = windows.get(position).unit;
+                lastOfUnit = position + 1 == windows.size() || windows.get(position + 1).unit != unit;
+            }
+            if (clusterRun != null) {
+                if (!exported) {
+                    failedUnits.add(unit);
+                }
+                if (lastOfUnit) {
+                    finishedUnits.add(unit);
+                }
+            }
+            position++;
+            fragments.set(0);
+            close();
+        }
+
+        void close() {
+            if (cursor != null) {
+                cursor.close();
+                cursor = null;
+            }
+        }
+    }
+
+    private ExportSettings readSettings(ProcessContext context) {
+        ExportSettings settings = new ExportSettings();
+        settings.query = context.getProperty(QUERY).isSet() ? Document.parse(context.getProperty(QUERY).evaluateAttributeExpressions().getValue()) : null;
+        settings.projection = this.coveredProjection != null ? this.coveredProjection
+                : context.getProperty(PROJECTION).isSet() ? Document.parse(context.getProperty(PROJECTION).evaluateAttributeExpressions().getValue()) : null;
+        settings.hint = context.getProperty(INDEX_HINT).isSet() ? parseHint(context.getProperty(INDEX_HINT).getValue()) : null;
+        settings.sort = context.getProperty(SORT).isSet() ? Document.parse(context.getProperty(SORT).evaluateAttributeExpressions().getValue()) : null;
+        settings.pipeline = context.getProperty(PIPELINE).isSet() ? parsePipeline(context.getProperty(PIPELINE).evaluateAttributeExpressions().getValue()) : null;
+        settings.allowDiskUse = context.getProperty(ALLOW_DISK_USE).asBoolean();
+        settings.limit = context.getProperty(LIMIT).isSet() ? context.getProperty(LIMIT).evaluateAttributeExpressions().asInteger() : null;
+        settings.batchSize = context.getProperty(BATCH_SIZE).isSet() ? context.getProperty(BATCH_SIZE).evaluateAttributeExpressions().asInteger() : null;
+        settings.batchSizer = this.batchSizer;
+        settings.ceiling = context.getProperty(RESULTS_PER_FLOWFILE).isSet() ? context.getProperty(RESULTS_PER_FLOWFILE).evaluateAttributeExpressions().asInteger() : null;
+        settings.maxFlowFileSize = context.getProperty(MAX_FLOWFILE_SIZE).isSet() ? context.getProperty(MAX_FLOWFILE_SIZE).asDataSize(DataUnit.B).longValue() : 0;
+        settings.incrementalField = context.getProperty(QUERY_INCREMENTAL).isSet() ? context.getProperty(QUERY_INCREMENTAL).evaluateAttributeExpressions().getValue() : null;
+        settings.resultType = context.getProperty(TYPE_RESULT_INCREMENTAL).getValue();
+        settings.rawBson = settings.resultType.equals(BSON_TYPE_RESULT);
+        settings.jsonTypeSetting = context.getProperty(JSON_TYPE).getValue();
+        settings.prettyPrint = context.getProperty(PRETTY_PRINT).asBoolean();
+        settings.csvHeader = settings.pipeline == null ? CsvBatchWriter.headerFromProjection(settings.projection) : null;
+        settings.csvSampleSize = context.getProperty(CSV_HEADER_SAMPLE_SIZE).asInteger();
+        settings.codec = this.codec;
+        if (settings.resultType.equals(RECORD_TYPE_RESULT)) {
+            settings.recordWriterFactory = context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+            settings.recordFields = settings.csvHeader;
+            settings.recordSampleSize = context.getProperty(RECORD_SCHEMA_SAMPLE_SIZE).asInteger();
+        }
+        settings.compression = context.getProperty(OUTPUT_COMPRESSION).getValue();
+        settings.compressionLevel = context.getProperty(COMPRESSION_LEVEL).asInteger();
+        settings.attributes = this.attributes;
+        settings.serializerThreads = context.getProperty(SERIALIZER_THREADS).asInteger();
+        if (context.getProperty(CLUSTER_PARTITIONING).asBoolean()) {
+            settings.nodeId = context.getProperty(NODE_IDENTIFIER).evaluateAttributeExpressions().getValue();
+            settings.nodeExpiration = context.getProperty(NODE_EXPIRATION).asTimePeriod(TimeUnit.MILLISECONDS);
+        }
+        return settings;
+    }
+
+    /**
+     * Splits the range into windows of Range days, each its own unit of work. When capped, the
+     * last window ends exactly at finishDate instead of running past it, so that a watermark
+     * never covers the future.
+     */
+    private static List<Window> planWindows(Date fromDate, Date finishDate, int range, boolean capped) {
+        List<Window> windows = new ArrayList<>();
+        Calendar calTo = Calendar.getInstance();
+        while (capped ? fromDate.before(finishDate) : fromDate.compareTo(finishDate) <= 0) {
+            calTo.clear();
+            calTo.setTime(fromDate);
+            calTo.add(Calendar.DATE, range);
+            Date toDate = capped && calTo.getTime().after(finishDate) ? finishDate : calTo.getTime();
+            windows.add(new Window(fromDate, toDate, windows.size()));
+            fromDate = toDate;
+        }
+        return windows;
+    }
+
+    /**
+     * Evens out the windows by document count: a window holding more than maxDocuments is halved
+     * until it fits or would get shorter than minDuration, and runs of adjacent windows that fit
+     * together are merged. Under Cluster Partitioning windows of different units are never
+     * merged, so that each unit is finished on its own. Counts stop at maxDocuments + 1 so each
+     * costs at most that many index entries.
+     */
+    private static List<Window> balanceWindows(MongoCollection<Document> collection, ExportSettings settings, List<Window> windows, int maxDocuments, long minDuration) {
+        Deque<Window> pending = new ArrayDeque<>(windows);
+        CountOptions countOptions = new CountOptions().limit(maxDocuments + 1);
+        if (settings.hint instanceof Document) {
+            countOptions.hint((Document) settings.hint);
+        } else if (settings.hint != null) {
+            countOptions.hintString((String) settings.hint);
+        }
+        List<Window> balanced = new ArrayList<>();
+        Window merged = null;
+        long mergedCount = 0;
+        while (!pending.isEmpty()) {
+            Window window = pending.poll();
+            long count = collection.count(windowQuery(settings, window), countOptions);
+            long duration = window.to.getTime() - window.from.getTime();
+            if (count > maxDocuments && duration >= 2 * minDuration) {
+                Date middle = new Date(window.from.getTime() + duration / 2);
+                pending.addFirst(new Window(middle, window.to, window.unit));
+                pending.addFirst(new Window(window.from, middle, window.unit));
+            } else if (merged != null && merged.to.equals(window.from) && mergedCount + count <= maxDocuments
+                    && (settings.nodeId == null || merged.unit == window.unit)) {
+                merged = new Window(merged.from, window.to, merged.unit);
+                mergedCount += count;
             } else {
-                asJson = document.toJson(new JsonWriterSettings(true));
+                if (merged != null) {
+                    balanced.add(merged);
+                }
+                merged = window;
+                mergedCount = count;
+            }
+        }
+        if (merged != null) {
+            balanced.add(merged);
+        }
+        return balanced;
+    }
+
+    /**
+     * An Index Hint is either a key pattern document or an index name.
+     */
+    static Object parseHint(String value) {
+        return value.trim().startsWith("{") ? Document.parse(value) : value.trim();
+    }
+
+    /**
+     * Returns the key pattern of the hinted index, or null when no index has the hinted name.
+     */
+    private static Document indexKeys(MongoCollection<Document> collection, Object hint) {
+        if (hint instanceof Document) {
+            return (Document) hint;
+        }
+        for (Document index : collection.listIndexes()) {
+            if (hint.equals(index.getString("name"))) {
+                return index.get("key", Document.class);
             }
+        }
+        return null;
+    }
 
-            builder.append(asJson).append(documents.size() > 1 && index + 1 < documents.size() ? ", " : "");
+    /**
+     * Restricts a projection to the fields of an index, leaving out _id unless the index holds
+     * it, so that the server can answer the query from the index without fetching documents.
+     */
+    static Document coveredProjection(Document keys, Document projection) {
+        boolean exclusion = true;
+        if (projection != null) {
+            for (Map.Entry<String, Object> entry : projection.entrySet()) {
+                if (!entry.getKey().equals("_id") && CsvBatchWriter.isIncluded(entry.getValue())) {
+                    exclusion = false;
+                }
+            }
+        }
+        Document covered = new Document();
+        for (String field : keys.keySet()) {
+            boolean included = projection == null || !projection.containsKey(field) ? exclusion : CsvBatchWriter.isIncluded(projection.get(field));
+            if (included) {
+                covered.append(field, 1);
+            }
         }
+        if (!keys.containsKey("_id")) {
+            covered.append("_id", 0);
+        }
+        return covered;
+    }
 
-        return "[" + builder.toString() + "]";
+    /**
+     * Collects the stage names of the winning plans in an explain result, including those of
+     * every shard and of an aggregation's $cursor stage.
+     */
+    private static void collectWinningStages(Object node, boolean winning, Set<String> stages) {
+        if (node instanceof Document) {
+            for (Map.Entry<String, Object> entry : ((Document) node).entrySet()) {
+                if (winning && entry.getKey().equals("stage")) {
+                    stages.add(String.valueOf(entry.getValue()));
+                }
+                collectWinningStages(entry.getValue(), winning || entry.getKey().equals("winningPlan"), stages);
+            }
+        } else if (node instanceof List) {
+            for (Object element : (List<?>) node) {
+                collectWinningStages(element, winning, stages);
+            }
+        }
     }
 
-    private String buildBatchCsvIncremental(List<Document> documents) throws Exception {
-        JSONArray jsonArray = new JSONArray();
-        for (int index = 0; index < documents.size(); ++index) {
-            Document document = (Document) documents.get(index);
-            String asJson = this.mapper.writerWithDefaultPrettyPrinter().writeValueAsString(document);
-            JSONObject jsonObject = new JSONObject(asJson);
-            jsonArray.put(jsonObject);
+    /**
+     * Explains the query of a window of the last Range days (or the plain query) and reports a
+     * winning plan that scans the collection or sorts in memory. Also resolves the covered
+     * projection, which needs the hinted index's keys.
+     */
+    @OnScheduled
+    public void checkQueryPlan(ProcessContext context) throws IOException {
+        this.coveredProjection = null;
+        String planCheck = context.getProperty(PLAN_CHECK).getValue();
+        boolean covered = context.getProperty(COVERED_PROJECTION).asBoolean();
+        if (PLAN_CHECK_OFF.equals(planCheck) && !covered) {
+            return;
+        }
+        if (this.mongoClient == null) {
+            this.createClient(context);
+        }
+        MongoCollection<Document> collection = this.getCollection(context);
+        if (covered) {
+            Document keys = indexKeys(collection, parseHint(context.getProperty(INDEX_HINT).getValue()));
+            if (keys == null) {
+                throw new ProcessException("Index Hint " + context.getProperty(INDEX_HINT).getValue() + " does not name an index of " + collection.getNamespace());
+            }
+            Document projection = context.getProperty(PROJECTION).isSet() ? Document.parse(context.getProperty(PROJECTION).evaluateAttributeExpressions().getValue()) : null;
+            this.coveredProjection = coveredProjection(keys, projection);
+            String incrementalField = context.getProperty(QUERY_INCREMENTAL).isSet() ? context.getProperty(QUERY_INCREMENTAL).evaluateAttributeExpressions().getValue() : null;
+            if (incrementalField != null && !keys.containsKey(incrementalField)) {
+                this.getLogger().warn("The hinted index {} does not hold the incremental field {}, so window queries cannot be covered", new Object[]{keys.toJson(), incrementalField});
+            }
+        }
+        if (PLAN_CHECK_OFF.equals(planCheck)) {
+            return;
+        }
+
+        ExportSettings settings = this.readSettings(context);
+        Document query = settings.query;
+        if (settings.incrementalField != null) {
+            int range = context.getProperty(RANGE_INCREMENTAL).isSet() ? context.getProperty(RANGE_INCREMENTAL).asInteger() : 1;
+            Calendar calendar = Calendar.getInstance();
+            Date to = calendar.getTime();
+            calendar.add(Calendar.DATE, -range);
+            query = windowQuery(settings, new Window(calendar.getTime(), to));
         }
-        return CDL.toString(jsonArray);
+        Document command;
+        if (settings.pipeline != null) {
+            List<Document> pipeline = new ArrayList<>();
+            if (query != null) {
+                pipeline.add(new Document("$match", query));
+            }
+            pipeline.addAll(settings.pipeline);
+            command = new Document("aggregate", collection.getNamespace().getCollectionName()).append("pipeline", pipeline).append("explain", true);
+        } else {
+            Document find = new Document("find", collection.getNamespace().getCollectionName()).append("filter", query != null ? query : new Document());
+            if (settings.projection != null) {
+                find.append("projection", settings.projection);
+            }
+            if (settings.sort != null) {
+                find.append("sort", settings.sort);
+            }
+            if (settings.hint != null) {
+                find.append("hint", settings.hint);
+            }
+            command = new Document("explain", find).append("verbosity", "queryPlanner");
+        }
+        Set<String> stages = new TreeSet<>();
+        collectWinningStages(this.getDatabase(context).runCommand(command), false, stages);
+        stages.retainAll(Arrays.asList("COLLSCAN", "SORT"));
+        if (stages.isEmpty()) {
+            return;
+        }
+        String message = "The winning plan for " + query + " has " + String.join(" and ", stages) + " stages: "
+                + (stages.contains("COLLSCAN") ? "it scans the whole collection. " : "") + (stages.contains("SORT") ? "it sorts in memory. " : "")
+                + "Consider an index on the query and sort fields, or setting Index Hint";
+        if (PLAN_CHECK_FAIL.equals(planCheck)) {
+            throw new ProcessException(message);
+        }
+        this.getLogger().warn(message);
     }
 
-    private void configureMapper(String setting) {
-        this.mapper = new ObjectMapper();
-        if (setting.equals("Standard")) {
-            this.mapper.registerModule(ObjectIdSerializer.getModule());
-            DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-            this.mapper.setDateFormat(df);
-            this.mapper.setTimeZone(TimeZone.getTimeZone("UTC"));
-            this.mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+    /**
+     * Parses a JSON array of aggregation stages.
+     */
+    static List<Document> parsePipeline(String value) {
+        List<?> stages = Document.parse("{\"pipeline\": " + value + "}").get("pipeline", List.class);
+        List<Document> pipeline = new ArrayList<>();
+        for (Object stage : stages) {
+            if (!(stage instanceof Document)) {
+                throw new IllegalArgumentException("Every pipeline stage must be a document");
+            }
+            pipeline.add((Document) stage);
         }
+        return pipeline;
     }
 
-    private void writeBatch(final String payload, ProcessContext context, ProcessSession session) {
-        FlowFile flowFile = session.create();
-        flowFile = session.write(flowFile, new OutputStreamCallback() {
-            public void process(OutputStream out) throws IOException {
-                out.write(payload.getBytes("UTF-8"));
+    /**
+     * Runs the query: the Pipeline, preceded by a $match on the query, when one is set, and a find
+     * with the projection, sort and limit otherwise.
+     */
+    private static <T> MongoIterable<T> find(MongoCollection<T> collection, Document query, ExportSettings settings, Integer batchSize) {
+        if (settings.pipeline != null) {
+            List<Document> pipeline = new ArrayList<>();
+            if (query != null) {
+                pipeline.add(new Document("$match", query));
             }
-        });
-        flowFile = session.putAttribute(flowFile, CoreAttributes.MIME_TYPE.key(), "application/json");
-        session.getProvenanceReporter().receive(flowFile, this.getURI(context));
-        session.transfer(flowFile, REL_SUCCESS);
+            pipeline.addAll(settings.pipeline);
+            AggregateIterable<T> it = collection.aggregate(pipeline).allowDiskUse(settings.allowDiskUse);
+            if (batchSize != null) {
+                it.batchSize(batchSize);
+            }
+            return it;
+        }
+        FindIterable<T> it = query != null ? collection.find(query) : collection.find();
+        if (settings.projection != null) {
+            it.projection(settings.projection);
+        }
+
+        if (settings.sort != null) {
+            it.sort(settings.sort);
+        }
+
+        if (settings.limit != null) {
+            it.limit(settings.limit);
+        }
+
+        if (settings.hint != null) {
+            it.modifiers(new Document("$hint", settings.hint));
+        }
+
+        if (settings.noCursorTimeout) {
+            it.noCursorTimeout(true);
+        }
+
+        if (batchSize != null) {
+            it.batchSize(batchSize);
+        }
+        return it;
     }
 
-    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
-        ComponentLog logger = this.getLogger();
-        Document query = context.getProperty(QUERY).isSet() ? Document.parse(context.getProperty(QUERY).evaluateAttributeExpressions().getValue()) : null;
-        Document projection = context.getProperty(PROJECTION).isSet() ? Document.parse(context.getProperty(PROJECTION).evaluateAttributeExpressions().getValue()) : null;
-        Document sort = context.getProperty(SORT).isSet() ? Document.parse(context.getProperty(SORT).evaluateAttributeExpressions().getValue()) : null;
-        final String jsonTypeSetting = context.getProperty(JSON_TYPE).getValue();
-        this.configureMapper(jsonTypeSetting);
-        MongoCollection collection = this.getCollection(context);
+    /**
+     * Opens the query's cursor: of RawBsonDocuments for the BSON result type, otherwise of
+     * Documents with the batch size chosen by the adaptive batch sizer when Adaptive Batch Size is
+     * enabled.
+     */
+    private static MongoCursor<?> openCursor(MongoCollection<Document> collection, final Document query, final ExportSettings settings) {
+        if (settings.rawBson) {
+            return find(collection.withDocumentClass(RawBsonDocument.class), query, settings, settings.batchSize).iterator();
+        }
+        if (settings.batchSizer == null) {
+            return find(collection, query, settings, settings.batchSize).iterator();
+        }
+        return settings.batchSizer.open(collection, (measured, batchSize) -> find(measured, query, settings, batchSize).iterator());
+    }
 
+    private static Document windowQuery(ExportSettings settings, Window window) {
+        Document windowQuery = settings.query != null ? new Document(settings.query) : new Document();
+        windowQuery.append(settings.incrementalField, new Document("$gte", window.from).append("$lt", window.to));
+        return windowQuery;
+    }
 
-        //TruongLX
-        if (context.getProperty(QUERY_INCREMENTAL).isSet()) {
-            try {
-                int range = context.getProperty(RANGE_INCREMENTAL).isSet() ? context.getProperty(RANGE_INCREMENTAL).asInteger() : 1;
-                String rsType = context.getProperty(TYPE_RESULT_INCREMENTAL).getValue();
-                Date fromDate, finishDate;
-                Calendar calendarTmp = Calendar.getInstance();
+    private void exportWindow(MongoCollection<Document> collection, ExportSettings settings, Window window, ContentSink sink) throws IOException {
+        final MongoCursor<?> cursor = openCursor(collection, windowQuery(settings, window), settings);
+        try {
+            this.exportCursor(cursor, settings, window, new AtomicInteger(), sink);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void exportPartition(MongoCollection<Document> collection, ExportSettings settings, Partition partition, ContentSink sink) throws IOException {
+        Document range = new Document();
+        if (partition.otherThanType != null) {
+            range.append("$not", new Document("$type", partition.otherThanType));
+        }
+        if (partition.lower != null) {
+            range.append("$gte", partition.lower);
+        }
+        if (partition.upper != null) {
+            range.append("$lt", partition.upper);
+        }
+        Document partitionQuery = settings.query;
+        if (!range.isEmpty()) {
+            if (settings.query == null) {
+                partitionQuery = new Document("_id", range);
+            } else {
+                partitionQuery = new Document("$and", Arrays.asList(settings.query, new Document("_id", range)));
+            }
+        }
+        final MongoCursor<?> cursor = openCursor(collection, partitionQuery, settings);
+        try {
+            this.exportCursor(cursor, settings, null, new AtomicInteger(), sink);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Picks partitionCount - 1 split points of the _id keyspace from a random sample of the
+     * matching documents. Returns no split points when the sampled ids are not all of one type
+     * {@link #bsonTypeAlias} knows.
+     */
+    private static List<Object> sampleBoundaries(MongoCollection<Document> collection, Document query, int partitionCount) {
+        List<Document> pipeline = new ArrayList<>();
+        if (query != null) {
+            pipeline.add(new Document("$match", query));
+        }
+        pipeline.add(new Document("$sample", new Document("size", partitionCount * SAMPLES_PER_PARTITION)));
+        pipeline.add(new Document("$project", new Document("_id", 1)));
+        List<Object> ids = new ArrayList<>();
+        for (Document document : collection.aggregate(pipeline).allowDiskUse(true)) {
+            Object id = document.get("_id");
+            String alias = bsonTypeAlias(id);
+            if (alias == null || !ids.isEmpty() && !alias.equals(bsonTypeAlias(ids.get(0)))) {
+                return Collections.emptyList();
+            }
+            ids.add(id);
+        }
+        ids.sort(JsonProcessor::compareIds);
+        List<Object> bounds = new ArrayList<>();
+        for (int i = 1; i < partitionCount && !ids.isEmpty(); i++) {
+            Object bound = ids.get(i * ids.size() / partitionCount);
+            if (bounds.isEmpty() || !bounds.get(bounds.size() - 1).equals(bound)) {
+                bounds.add(bound);
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Orders two ids of the same {@link #bsonTypeAlias} type; numbers of all widths compare by
+     * value.
+     */
+    static int compareIds(Object a, Object b) {
+        if (a instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        } else if (a instanceof ObjectId) {
+            return ((ObjectId) a).compareTo((ObjectId) b);
+        } else if (a instanceof String) {
+            return ((String) a).compareTo((String) b);
+        }
+        return ((Date) a).compareTo((Date) b);
+    }
+
+    /**
+     * Returns the $type alias matching every id that compares with the bound in a range query,
+     * or null for a type that is not split on. Numbers of all widths compare with each other.
+     */
+    static String bsonTypeAlias(Object bound) {
+        if (bound instanceof ObjectId) {
+            return "objectId";
+        } else if (bound instanceof String) {
+            return "string";
+        } else if (bound instanceof Integer || bound instanceof Long || bound instanceof Double) {
+            return "number";
+        } else if (bound instanceof Date) {
+            return "date";
+        }
+        return null;
+    }
+
+    /**
+     * Lists the partitions of a scan split at the bounds: one range per gap between bounds and,
+     * when split at all, a last partition for the ids that no range can match because they are
+     * of another type than the bounds.
+     */
+    static List<Partition> partitionsOf(List<?> bounds) {
+        List<Partition> partitions = new ArrayList<>();
+        for (int i = 0; i <= bounds.size(); i++) {
+            partitions.add(new Partition(i, i == 0 ? null : bounds.get(i - 1), i == bounds.size() ? null : bounds.get(i)));
+        }
+        if (!bounds.isEmpty()) {
+            partitions.add(new Partition(bounds.size() + 1, null, null, bsonTypeAlias(bounds.get(0))));
+        }
+        return partitions;
+    }
+
+    /**
+     * Scans the collection as Scan Partitions _id ranges drained concurrently. The split points
+     * and the partitions already committed are kept in state, so a scan that fails part way is
+     * resumed on the next trigger with the unfinished partitions only. The first node to start a
+     * scan publishes its split points; with Cluster Partitioning every node then drains only the
+     * partitions it claimed.
+     */
+    private void exportPartitionedScan(final MongoCollection<Document> collection, final ExportSettings settings, final int partitionCount, ProcessContext context, ProcessSession session) throws IOException {
+        StateManager stateManager = context.getStateManager();
+        final String signature = collectionSignature(context, settings) + "/" + partitionCount;
+        Map<String, String> state = ClusterMembership.startRun(stateManager, SCAN_RUN, signature,
+                () -> Collections.singletonMap(SCAN_BOUNDS_STATE, new Document("bounds", sampleBoundaries(collection, settings.query, partitionCount)).toJson()));
+        List<?> bounds = Document.parse(state.get(SCAN_BOUNDS_STATE)).get("bounds", List.class);
+
+        List<Partition> all = partitionsOf(bounds);
+        Collection<Integer> units;
+        if (settings.nodeId != null) {
+            units = ClusterMembership.claim(stateManager, SCAN_RUN, signature, settings.nodeId, all.size(), settings.nodeExpiration);
+        } else {
+            units = new TreeSet<>();
+            for (Partition partition : all) {
+                units.add(partition.index);
+            }
+            units.removeAll(ClusterMembership.doneUnits(state, SCAN_RUN));
+        }
+        List<Partition> partitions = new ArrayList<>();
+        for (Partition partition : all) {
+            if (units.contains(partition.index)) {
+                partitions.add(partition);
+            }
+        }
+        boolean[] exported = this.exportAll(partitions, (partition, sink) -> this.exportPartition(collection, settings, partition, sink), partitions.size(), context, session);
+        session.commit();
+
+        Set<Integer> committed = new TreeSet<>();
+        Set<Integer> failed = new TreeSet<>();
+        for (int i = 0; i < partitions.size(); i++) {
+            (exported[i] ? committed : failed).add(partitions.get(i).index);
+        }
+        try {
+            ClusterMembership.complete(stateManager, SCAN_RUN, signature, settings.nodeId, committed, failed, all.size());
+        } catch (IOException e) {
+            this.getLogger().warn("Failed to store partitioned scan progress; the next scan will start over", e);
+        }
+    }
+
+    /**
+     * Identifies what a run exports, so that a node only joins a run in state of the same export.
+     */
+    private static String collectionSignature(ProcessContext context, ExportSettings settings) {
+        return context.getProperty(DATABASE_NAME).evaluateAttributeExpressions().getValue() + "." + context.getProperty(COLLECTION_NAME).evaluateAttributeExpressions().getValue()
+                + "/" + (settings.query != null ? settings.query.toJson() : "");
+    }
+
+    /**
+     * Drains a cursor opened by {@link #openCursor} into the sink. A null window means a plain
+     * (non incremental) query. Fragments counts the parts of a whole window split at Max FlowFile
+     * Size, so that a window resumed by a later trigger goes on numbering them.
+     */
+    @SuppressWarnings("unchecked")
+    private void exportCursor(MongoCursor<?> cursor, ExportSettings settings, Window window, AtomicInteger fragments, ContentSink sink) throws IOException {
+        boolean pipelined = settings.serializerThreads > 0 && !settings.rawBson;
+        if (!OutputCompression.NONE.equals(settings.compression) && !(pipelined && isBatched(settings, window))) {
+            sink = new CompressingContentSink(sink, settings.compression, settings.compressionLevel);
+        }
+        if (settings.rawBson) {
+            exportRawCursor((MongoCursor<RawBsonDocument>) cursor, settings, window, fragments, sink);
+        } else if (pipelined) {
+            Map<String, String> batchAttributes = AdaptiveBatchSizer.attributesOf((MongoCursor<Document>) cursor);
+            try (PrefetchingCursor<Document> prefetched = new PrefetchingCursor<>((MongoCursor<Document>) cursor, PREFETCH_DOCUMENTS, this.prefetchExecutor)) {
+                this.exportDocuments(prefetched, batchAttributes, settings, window, fragments, sink);
+            }
+        } else {
+            this.exportDocuments((MongoCursor<Document>) cursor, AdaptiveBatchSizer.attributesOf((MongoCursor<Document>) cursor), settings, window, fragments, sink);
+        }
+    }
+
+    /**
+     * Whether the cursor is exported in batches of Results Per FlowFile documents, as opposed to
+     * one document or one whole window per flow file.
+     */
+    private static boolean isBatched(ExportSettings settings, Window window) {
+        return settings.ceiling != null && !(window != null && settings.ceiling >= 99999);
+    }
+
+    /**
+     * Copies the documents' BSON bytes as they came from the server, in the same parts as the
+     * other result types produce.
+     */
+    private static void exportRawCursor(final MongoCursor<RawBsonDocument> cursor, final ExportSettings settings, Window window, AtomicInteger fragments, ContentSink sink) throws IOException {
+        if (settings.ceiling == null) {
+            while (!sink.isFull() && cursor.hasNext()) {
+                final RawBsonDocument document = cursor.next();
+                Map<String, String> stringMap = new HashMap<>();
+                stringMap.put(CoreAttributes.MIME_TYPE.key(), BSON_TYPE_RESULT);
+                if (window != null) {
+                    BsonValue address = document.get("address");
+                    if (address != null && address.isString()) {
+                        stringMap.put("address", address.asString().getValue());
+                    }
+                }
+                if (!settings.attributes.isEmpty()) {
+                    settings.attributes.extract(document.decode(DOCUMENT_CODEC), settings.codec, stringMap);
+                }
+                sink.emit(out -> writeBson(out, Collections.singletonList(document).iterator(), 0, 0), stringMap);
+            }
+        } else if (window != null && settings.ceiling >= 99999) {
+            Map<String, String> stringMap = new HashMap<>();
+            stringMap.put(CoreAttributes.MIME_TYPE.key(), BSON_TYPE_RESULT);
+            stringMap.put(CoreAttributes.FILENAME.key(), formatDate(window.from));
+            while (!sink.isFull() && cursor.hasNext()) {
+                if (settings.maxFlowFileSize > 0) {
+                    stringMap.put(FRAGMENT_INDEX_ATTRIBUTE, String.valueOf(fragments.getAndIncrement()));
+                }
+                sink.emit(out -> writeBson(out, cursor, 0, settings.maxFlowFileSize), stringMap);
+            }
+        } else {
+            Map<String, String> stringMap = new HashMap<>();
+            stringMap.put(CoreAttributes.MIME_TYPE.key(), BSON_TYPE_RESULT);
+            while (!sink.isFull() && cursor.hasNext()) {
+                sink.emit(out -> writeBson(out, cursor, settings.ceiling, settings.maxFlowFileSize), stringMap);
+            }
+        }
+    }
+
+    /**
+     * Drains a Document cursor into the sink. With the Record result type every part is written
+     * through the Record Writer, which also sets the part's mime.type and record.count while
+     * writing.
+     */
+    private void exportDocuments(final MongoCursor<Document> cursor, Map<String, String> batchAttributes, final ExportSettings settings, Window window, AtomicInteger fragments, ContentSink sink) throws IOException {
+        ComponentLog log = this.getLogger();
+        if (settings.ceiling == null) {
+            while (!sink.isFull() && cursor.hasNext()) {
+                final Document document = cursor.next();
+                Map<String, String> stringMap = new HashMap<>(batchAttributes);
+                if (window != null) {
+                    stringMap.put(CoreAttributes.MIME_TYPE.key(), settings.resultType);
+                    stringMap.put("address", document.getString("address"));
+                } else {
+                    stringMap.put(CoreAttributes.MIME_TYPE.key(), "application/json");
+                }
+                settings.attributes.extract(document, settings.codec, stringMap);
+                if (settings.recordWriterFactory != null) {
+                    sink.emit(out -> writeRecords(out, Collections.singletonList(document).iterator(), 0, 0, settings, log, stringMap), stringMap);
+                } else {
+                    sink.emit(out -> writeDocument(out, document, settings.codec, settings.jsonTypeSetting, settings.prettyPrint), stringMap);
+                }
+            }
+        } else if (window != null && settings.ceiling >= 99999) {
+            Map<String, String> stringMap = new HashMap<>(batchAttributes);
+            stringMap.put(CoreAttributes.MIME_TYPE.key(), settings.resultType);
+            stringMap.put(CoreAttributes.FILENAME.key(), formatDate(window.from));
+            while (!sink.isFull() && cursor.hasNext()) {
+                if (settings.maxFlowFileSize > 0) {
+                    stringMap.put(FRAGMENT_INDEX_ATTRIBUTE, String.valueOf(fragments.getAndIncrement()));
+                }
+                if (settings.resultType.equals(JSON_TYPE_RESULT)) {
+                    sink.emit(out -> writeJson(out, cursor, 0, settings.maxFlowFileSize, settings.codec, JSON_TYPE_STANDARD, settings.prettyPrint), stringMap);
+                } else if (settings.recordWriterFactory != null) {
+                    sink.emit(out -> writeRecords(out, cursor, 0, settings.maxFlowFileSize, settings, log, stringMap), stringMap);
+                } else {
+                    sink.emit(out -> writeCsv(out, cursor, settings.maxFlowFileSize, settings.codec, settings.csvHeader, settings.csvSampleSize, log), stringMap);
+                }
+            }
+        } else {
+            Map<String, String> stringMap = new HashMap<>(batchAttributes);
+            stringMap.put(CoreAttributes.MIME_TYPE.key(), "application/json");
+            if (settings.serializerThreads > 0) {
+                this.exportBatchesPipelined(cursor, settings, stringMap, sink);
+                return;
+            }
+            while (!sink.isFull() && cursor.hasNext()) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Writing batch...");
+                }
+                if (settings.recordWriterFactory != null) {
+                    sink.emit(out -> writeRecords(out, cursor, settings.ceiling, settings.maxFlowFileSize, settings, log, stringMap), stringMap);
+                } else {
+                    sink.emit(out -> writeJson(out, cursor, settings.ceiling, settings.maxFlowFileSize, settings.codec, settings.jsonTypeSetting, settings.prettyPrint), stringMap);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cuts the cursor into batches of Results Per FlowFile documents on the calling thread, which
+     * stays free to take prefetched documents while up to twice Serializer Threads batches are
+     * serialized (and compressed) on the workers; the serialized parts are emitted into the sink
+     * in cursor order.
+     */
+    private void exportBatchesPipelined(Iterator<Document> cursor, final ExportSettings settings, final Map<String, String> stringMap, ContentSink sink) throws IOException {
+        final ComponentLog log = this.getLogger();
+        Deque<Future<BufferedContentSink>> inFlight = new ArrayDeque<>();
+        try {
+            while (true) {
+                while (inFlight.size() < 2 * settings.serializerThreads && cursor.hasNext()) {
+                    final List<Document> batch = new ArrayList<>(settings.ceiling);
+                    while (batch.size() < settings.ceiling && cursor.hasNext()) {
+                        batch.add(cursor.next());
+                    }
+                    inFlight.add(this.serializerExecutor.submit(() -> serializeBatch(batch, settings, stringMap, log)));
+                }
+                if (inFlight.isEmpty()) {
+                    return;
+                }
+                inFlight.poll().get().replayTo(sink);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new ProcessException("Failed to serialize a batch", e.getCause());
+        } finally {
+            for (Future<BufferedContentSink> future : inFlight) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static BufferedContentSink serializeBatch(List<Document> batch, final ExportSettings settings, Map<String, String> stringMap, final ComponentLog log) throws IOException {
+        BufferedContentSink buffer = new BufferedContentSink();
+        ContentSink sink = OutputCompression.NONE.equals(settings.compression) ? buffer : new CompressingContentSink(buffer, settings.compression, settings.compressionLevel);
+        final Iterator<Document> documents = batch.iterator();
+        while (documents.hasNext()) {
+            final Map<String, String> attributes = new HashMap<>(stringMap);
+            if (settings.recordWriterFactory != null) {
+                sink.emit(out -> writeRecords(out, documents, settings.ceiling, settings.maxFlowFileSize, settings, log, attributes), attributes);
+            } else {
+                sink.emit(out -> writeJson(out, documents, settings.ceiling, settings.maxFlowFileSize, settings.codec, settings.jsonTypeSetting, settings.prettyPrint), attributes);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Exports every unit (window or partition) and transfers the output in unit order. With a
+     * parallelism above one, up to that many units run at once on the executor; each is spooled
+     * to temporary files by its worker and imported by the session thread, which is the only
+     * thread allowed to use the session. A failing unit is logged and skipped.
+     *
+     * @return which units were exported
+     */
+    private <T> boolean[] exportAll(List<T> units, final UnitExporter<T> exporter, int parallelism, ProcessContext context, ProcessSession session) {
+        boolean[] exported = new boolean[units.size()];
+        if (this.executor == null || parallelism <= 1 || units.size() <= 1) {
+            ContentSink sink = new SessionContentSink(session, this.getURI(context), REL_SUCCESS);
+            for (int i = 0; i < units.size(); i++) {
                 try {
-                    finishDate = FORMAT_DATE.parse(context.getProperty(TO_DATE).evaluateAttributeExpressions().getValue());
-                } catch (Exception e) {
-                    finishDate = calendarTmp.getTime();
+                    exporter.export(units.get(i), sink);
+                    exported[i] = true;
+                } catch (Exception ex) {
+                    this.getLogger().error("Failed to export {}", new Object[]{units.get(i)}, ex);
+                }
+            }
+            return exported;
+        }
+
+        String uri = this.getURI(context);
+        Deque<Future<SpoolContentSink>> pending = new ArrayDeque<>();
+        int next = 0;
+        try {
+            for (int head = 0; head < units.size(); head++) {
+                while (next < units.size() && pending.size() < parallelism) {
+                    final T unit = units.get(next++);
+                    pending.add(this.executor.submit(() -> {
+                        SpoolContentSink sink = new SpoolContentSink();
+                        try {
+                            exporter.export(unit, sink);
+                            return sink;
+                        } catch (Exception e) {
+                            sink.discard();
+                            throw e;
+                        }
+                    }));
                 }
                 try {
-                    fromDate = FORMAT_DATE.parse(context.getProperty(FROM_DATE).evaluateAttributeExpressions().getValue());
-                } catch (Exception e) {
-                    calendarTmp.add(Calendar.DATE, -1);
-                    fromDate = calendarTmp.getTime();
+                    pending.poll().get().transferTo(session, uri, REL_SUCCESS);
+                    exported[head] = true;
+                } catch (ExecutionException e) {
+                    this.getLogger().error("Failed to export {}", new Object[]{units.get(head)}, e.getCause());
                 }
-                String query_incremental = context.getProperty(QUERY_INCREMENTAL).evaluateAttributeExpressions().getValue();
-                Calendar calTo = Calendar.getInstance();
-                Date toDate = calTo.getTime();
-                while (fromDate.compareTo(finishDate) <= 0) {
+            }
+            return exported;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException(e);
+        } finally {
+            for (Future<SpoolContentSink> future : pending) {
+                if (!future.cancel(false)) {
                     try {
-                        calTo.clear();
-                        calTo.setTime(fromDate);
-                        calTo.add(Calendar.DATE, range);
-                        toDate = calTo.getTime();
-
-                        if (query != null) {
-                            query.append(query_incremental, new Document("$gte", fromDate).append("$lt", toDate));
-                        } else {
-                            query = new Document(query_incremental, new Document("$gte", fromDate).append("$lt", toDate));
-                        }
-                        FindIterable<Document> it = collection.find(query);
-                        if (projection != null) {
-                            it.projection(projection);
-                        }
+                        future.get().discard();
+                    } catch (Exception ignored) {
+                    }
+                }
+            }
+        }
+    }
 
-                        if (sort != null) {
-                            it.sort(sort);
-                        }
+    private void saveWatermark(ProcessContext context, String field, Date watermark) {
+        try {
+            ClusterMembership.update(context.getStateManager(), state -> {
+                state.put(WATERMARK_STATE_PREFIX + field, String.valueOf(watermark.getTime()));
+                return state;
+            });
+        } catch (IOException e) {
+            this.getLogger().warn("Failed to store watermark {} for {}; the next run will export those windows again", new Object[]{formatDate(watermark), field}, e);
+        }
+    }
 
-                        if (context.getProperty(LIMIT).isSet()) {
-                            it.limit(context.getProperty(LIMIT).evaluateAttributeExpressions().asInteger());
-                        }
+    @OnScheduled
+    public void createCodec() {
+        this.codec = new StandardJsonCodec();
+    }
 
-                        if (context.getProperty(BATCH_SIZE).isSet()) {
-                            it.batchSize(context.getProperty(BATCH_SIZE).evaluateAttributeExpressions().asInteger());
-                        }
+    @OnScheduled
+    public void compileAttributePaths(ProcessContext context) {
+        DocumentAttributes attributes = new DocumentAttributes();
+        for (PropertyDescriptor descriptor : context.getProperties().keySet()) {
+            if (descriptor.isDynamic()) {
+                attributes.add(descriptor.getName(), context.getProperty(descriptor).getValue());
+            }
+        }
+        this.attributes = attributes;
+    }
 
-                        final MongoCursor<Document> cursor = it.iterator();
-                        ComponentLog log = this.getLogger();
-
-                        try{
-                            FlowFile flowFile = null;
-                            if (!context.getProperty(RESULTS_PER_FLOWFILE).isSet()) {
-                                while (cursor.hasNext()) {
-                                    Document document = cursor.next();
-                                    flowFile = session.create();
-                                    flowFile = session.write(flowFile, new OutputStreamCallback() {
-                                        public void process(OutputStream out) throws IOException {
-                                            String json;
-                                            if (jsonTypeSetting.equals("Standard")) {
-                                                json = JsonProcessor.this.mapper.writerWithDefaultPrettyPrinter().writeValueAsString(document);
-                                            } else {
-                                                json = document.toJson();
-                                            }
-                                            IOUtils.write(json, out);
-                                        }
-                                    });
-                                    Map<String, String> stringMap = new HashMap<>();
-                                    stringMap.put(CoreAttributes.MIME_TYPE.key(), rsType);
-//                                stringMap.put(CoreAttributes.FILENAME.key(), FORMAT_DATE.format(fromDate));
-                                    stringMap.put("address", document.getString("address"));
-                                    flowFile = session.putAllAttributes(flowFile, stringMap);
-
-                                    session.getProvenanceReporter().receive(flowFile, this.getURI(context));
-                                    session.transfer(flowFile, REL_SUCCESS);
-                                }
-                            } else {
-                                int ceiling = context.getProperty(RESULTS_PER_FLOWFILE).evaluateAttributeExpressions().asInteger();
-                                if (ceiling >= 99999) {
-                                    List<Document> documents = new ArrayList<>();
-                                    try {
-                                        while (cursor.hasNext()) {
-                                            documents.add(cursor.next());
-                                        }
-                                        String payload;
-                                        if (rsType.equals(JSON_TYPE_RESULT)) {
-                                            payload = this.buildBatch(documents, "Standard");
-                                        } else {
-                                            payload = this.buildBatchCsvIncremental(documents);
-                                        }
-                                        if (payload != null && !payload.equals("") && !payload.equals("[]")) {
-                                            flowFile = session.create();
-                                            flowFile = session.write(flowFile, new OutputStreamCallback() {
-                                                public void process(OutputStream out) throws IOException {
-                                                    out.write(payload.getBytes("UTF-8"));
-                                                }
-                                            });
-                                            Map<String, String> stringMap = new HashMap<>();
-                                            stringMap.put(CoreAttributes.MIME_TYPE.key(), rsType);
-                                            stringMap.put(CoreAttributes.FILENAME.key(), FORMAT_DATE.format(fromDate));
-                                            flowFile = session.putAllAttributes(flowFile, stringMap);
-
-                                            session.getProvenanceReporter().receive(flowFile, this.getURI(context));
-                                            session.transfer(flowFile, REL_SUCCESS);
-                                        }
-                                    } catch (Exception e) {
-                                        logger.error(fromDate.toString(), e);
-                                    }
-                                } else {
-                                    ArrayList batch = new ArrayList();
-                                    while (cursor.hasNext()) {
-                                        batch.add(cursor.next());
-                                        if (batch.size() == ceiling) {
-                                            try {
-                                                if (log.isDebugEnabled()) {
-                                                    log.debug("Writing batch...");
-                                                }
-
-                                                String payload = this.buildBatch(batch, jsonTypeSetting);
-                                                this.writeBatch(payload, context, session);
-                                                batch = new ArrayList();
-                                            } catch (IOException var22) {
-                                                this.getLogger().error("Error building batch", var22);
-                                            }
-                                        }
-                                    }
-
-                                    if (batch.size() > 0) {
-                                        try {
-                                            this.writeBatch(this.buildBatch(batch, jsonTypeSetting), context, session);
-                                        } catch (IOException var21) {
-                                            this.getLogger().error("Error sending remainder of batch", var21);
-                                        }
-                                    }
-                                }
-                            }
-                        } catch(Exception ex){
-                            logger.error("Errorrrrrrrrrrrrrr.......",ex);
-                        } finally {
-                            cursor.close();
-                        }
-                    } catch(Exception ex){
-                        logger.error("",ex);
-                    } finally {
-                        fromDate = toDate;
+    @OnScheduled
+    public void createBatchSizer(ProcessContext context) {
+        if (context.getProperty(ADAPTIVE_BATCH_SIZE).asBoolean()) {
+            long targetBytes = context.getProperty(TARGET_BATCH_BYTES).asDataSize(DataUnit.B).longValue();
+            long targetRoundTrip = context.getProperty(TARGET_ROUND_TRIP).isSet() ? context.getProperty(TARGET_ROUND_TRIP).asTimePeriod(TimeUnit.NANOSECONDS) : 0;
+            int initial = context.getProperty(BATCH_SIZE).isSet() ? context.getProperty(BATCH_SIZE).evaluateAttributeExpressions().asInteger() : 101;
+            this.batchSizer = new AdaptiveBatchSizer(targetBytes, targetRoundTrip, context.getProperty(MIN_BATCH_SIZE).asInteger(), context.getProperty(MAX_BATCH_SIZE).asInteger(), initial);
+        } else {
+            this.batchSizer = null;
+        }
+    }
+
+    @OnScheduled
+    public void createExecutor(ProcessContext context) {
+        int parallelism = Math.max(context.getProperty(WINDOW_PARALLELISM).asInteger(), context.getProperty(SCAN_PARTITIONS).asInteger());
+        if (parallelism > 1) {
+            this.executor = Executors.newFixedThreadPool(parallelism, daemonThreads("JsonProcessor-worker-"));
+        }
+    }
+
+    @OnScheduled
+    public void createPipelineExecutors(ProcessContext context) {
+        int serializerThreads = context.getProperty(SERIALIZER_THREADS).asInteger();
+        if (serializerThreads > 0) {
+            this.prefetchExecutor = Executors.newCachedThreadPool(daemonThreads("JsonProcessor-prefetch-"));
+            this.serializerExecutor = Executors.newFixedThreadPool(serializerThreads, daemonThreads("JsonProcessor-serializer-"));
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @OnStopped
+    public void shutdownExecutor() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+        if (this.prefetchExecutor != null) {
+            this.prefetchExecutor.shutdownNow();
+            this.prefetchExecutor = null;
+        }
+        if (this.serializerExecutor != null) {
+            this.serializerExecutor.shutdownNow();
+            this.serializerExecutor = null;
+        }
+    }
+
+    /**
+     * Resolves the windows of an incremental export, starting from the stored watermark when Use
+     * Watermark is enabled, and balances them by count when Max Window Documents is set. A plain
+     * query is a run without windows. Under Cluster Partitioning the windows are planned from the
+     * dates pinned in state by the node that started the run and only those this node claimed
+     * are kept; returns null when a plain query is already claimed by another node.
+     */
+    private ExportRun planRun(ProcessContext context, ExportSettings settings, MongoCollection<Document> collection) throws IOException {
+        StateManager stateManager = context.getStateManager();
+        if (settings.incrementalField == null) {
+            ExportRun run = new ExportRun(settings, null, false, null);
+            if (settings.nodeId != null) {
+                String signature = collectionSignature(context, settings);
+                ClusterMembership.startRun(stateManager, QUERY_RUN, signature, Collections::emptyMap);
+                if (ClusterMembership.claim(stateManager, QUERY_RUN, signature, settings.nodeId, 1, settings.nodeExpiration).isEmpty()) {
+                    return null;
+                }
+                run.clusterRun = QUERY_RUN;
+                run.clusterSignature = signature;
+                run.unitCount = 1;
+            }
+            return run;
+        }
+        int range = context.getProperty(RANGE_INCREMENTAL).isSet() ? context.getProperty(RANGE_INCREMENTAL).asInteger() : 1;
+        Date fromDate, finishDate;
+        Calendar calendarTmp = Calendar.getInstance();
+        boolean useWatermark = context.getProperty(USE_WATERMARK).asBoolean();
+        Date previousWatermark = null;
+        if (useWatermark) {
+            String stored = context.getStateManager().getState(Scope.CLUSTER).get(WATERMARK_STATE_PREFIX + settings.incrementalField);
+            if (stored != null) {
+                previousWatermark = new Date(Long.parseLong(stored));
+            }
+            finishDate = calendarTmp.getTime();
+        } else {
+            try {
+                finishDate = parseDate(context.getProperty(TO_DATE).evaluateAttributeExpressions().getValue());
+            } catch (Exception e) {
+                finishDate = calendarTmp.getTime();
+            }
+        }
+        if (previousWatermark != null) {
+            long overlap = context.getProperty(WATERMARK_OVERLAP).asTimePeriod(TimeUnit.MILLISECONDS);
+            fromDate = new Date(previousWatermark.getTime() - overlap);
+        } else {
+            try {
+                fromDate = parseDate(context.getProperty(FROM_DATE).evaluateAttributeExpressions().getValue());
+            } catch (Exception e) {
+                calendarTmp.add(Calendar.DATE, -1);
+                fromDate = calendarTmp.getTime();
+            }
+        }
+        List<Window> windows = planWindows(fromDate, finishDate, range, useWatermark);
+        String signature = null;
+        int unitCount = windows.size();
+        if (settings.nodeId != null) {
+            signature = collectionSignature(context, settings) + "/" + settings.incrementalField + "/" + range
+                    + "/" + context.getProperty(FROM_DATE).getValue() + "/" + context.getProperty(TO_DATE).getValue();
+            final String plan = fromDate.getTime() + "," + finishDate.getTime();
+            String[] pinned = ClusterMembership.startRun(stateManager, WINDOWS_RUN, signature, () -> Collections.singletonMap(WINDOWS_PLAN_STATE, plan)).get(WINDOWS_PLAN_STATE).split(",");
+            List<Window> planned = planWindows(new Date(Long.parseLong(pinned[0])), new Date(Long.parseLong(pinned[1])), range, false);
+            windows = new ArrayList<>();
+            for (int unit : ClusterMembership.claim(stateManager, WINDOWS_RUN, signature, settings.nodeId, planned.size(), settings.nodeExpiration)) {
+                windows.add(planned.get(unit));
+            }
+            unitCount = planned.size();
+        }
+        if (context.getProperty(MAX_WINDOW_DOCUMENTS).isSet()) {
+            windows = balanceWindows(collection, settings, windows, context.getProperty(MAX_WINDOW_DOCUMENTS).asInteger(), context.getProperty(MIN_WINDOW_DURATION).asTimePeriod(TimeUnit.MILLISECONDS));
+        }
+        ExportRun run = new ExportRun(settings, windows, useWatermark, previousWatermark);
+        if (signature != null) {
+            run.clusterRun = WINDOWS_RUN;
+            run.clusterSignature = signature;
+            run.unitCount = unitCount;
+        }
+        return run;
+    }
+
+    /**
+     * Saves the watermark and, under Cluster Partitioning, marks the units finished since the
+     * last save done, or releases them when one of their windows failed.
+     */
+    private void saveProgress(ProcessContext context, ExportRun run) {
+        if (run.useWatermark && run.completedUntil != null && (run.watermark == null || run.completedUntil.after(run.watermark))) {
+            this.saveWatermark(context, run.settings.incrementalField, run.completedUntil);
+            run.watermark = run.completedUntil;
+        }
+        if (run.clusterRun != null && (!run.finishedUnits.isEmpty() || run.isFinished())) {
+            Set<Integer> failed = new TreeSet<>(run.failedUnits);
+            failed.retainAll(run.finishedUnits);
+            Set<Integer> done = new TreeSet<>(run.finishedUnits);
+            done.removeAll(failed);
+            try {
+                ClusterMembership.complete(context.getStateManager(), run.clusterRun, run.clusterSignature, run.settings.nodeId, done, failed, run.unitCount);
+            } catch (IOException e) {
+                this.getLogger().warn("Failed to store the finished units {}; they will be exported again", new Object[]{done}, e);
+            }
+            run.finishedUnits.clear();
+        }
+    }
+
+    private static boolean isPartitionedScan(ProcessContext context, ExportSettings settings) {
+        return settings.incrementalField == null && context.getProperty(SCAN_PARTITIONS).asInteger() > 1
+                && settings.sort == null && settings.limit == null && settings.pipeline == null;
+    }
+
+    /**
+     * Under Cluster Partitioning, records the node as a live member. Called as soon as the node
+     * is scheduled, so nodes started together already count each other in their first share, and
+     * again on every trigger.
+     */
+    @OnScheduled
+    public void registerNode(ProcessContext context) throws IOException {
+        if (context.getProperty(CLUSTER_PARTITIONING).asBoolean()) {
+            ClusterMembership.register(context.getStateManager(), context.getProperty(NODE_IDENTIFIER).evaluateAttributeExpressions().getValue(),
+                    context.getProperty(NODE_EXPIRATION).asTimePeriod(TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private static boolean isBounded(ProcessContext context) {
+        return context.getProperty(MAX_FLOWFILES_PER_TRIGGER).isSet() || context.getProperty(MAX_BYTES_PER_TRIGGER).isSet();
+    }
+
+    /**
+     * Emits at most Max FlowFiles / Max Bytes Per Trigger, commits, and keeps the open cursor and
+     * window position for the next trigger. Any failure outside a single window drops the run, so
+     * the next trigger plans it again (from the watermark, when enabled).
+     */
+    private void exportBounded(ProcessContext context, ProcessSession session, ExportSettings settings, MongoCollection<Document> collection) {
+        ComponentLog logger = this.getLogger();
+        ExportRun run = this.run;
+        try {
+            if (run == null) {
+                // the cursor may sit idle between triggers for as long as back pressure lasts;
+                // it is closed when the run ends, fails or the processor stops
+                settings.noCursorTimeout = true;
+                run = this.planRun(context, settings, collection);
+                if (run == null) {
+                    context.yield();
+                    return;
+                }
+                this.run = run;
+            }
+            Integer maxFlowFiles = context.getProperty(MAX_FLOWFILES_PER_TRIGGER).isSet() ? context.getProperty(MAX_FLOWFILES_PER_TRIGGER).asInteger() : null;
+            Long maxBytes = context.getProperty(MAX_BYTES_PER_TRIGGER).isSet() ? context.getProperty(MAX_BYTES_PER_TRIGGER).asDataSize(DataUnit.B).longValue() : null;
+            BoundedContentSink sink = new BoundedContentSink(new SessionContentSink(session, this.getURI(context), REL_SUCCESS), maxFlowFiles, maxBytes);
+            while (!sink.isFull() && !run.isFinished()) {
+                Window window = run.currentWindow();
+                try {
+                    if (run.cursor == null) {
+                        Document query = window != null ? windowQuery(run.settings, window) : run.settings.query;
+                        run.cursor = openCursor(collection, query, run.settings);
+                    }
+                    this.exportCursor(run.cursor, run.settings, window, run.fragments, sink);
+                    if (!sink.isFull() || !run.cursor.hasNext()) {
+                        run.completeUnit(true);
+                    }
+                } catch (Exception ex) {
+                    if (window == null) {
+                        throw ex;
                     }
+                    run.completeUnit(false);
+                    logger.error("Failed to export {}", new Object[]{window}, ex);
                 }
+            }
+            session.commit();
+            this.saveProgress(context, run);
+            if (run.isFinished()) {
+                this.run = null;
+            }
+        } catch (Exception var24) {
+            if (run != null) {
+                run.close();
+            }
+            this.run = null;
+            context.yield();
+            session.rollback();
+            logger.error("Failed to execute query {} due to {}", new Object[]{settings.query, var24}, var24);
+        }
+    }
+
+    @OnStopped
+    public void closeRun() {
+        ExportRun run = this.run;
+        if (run != null) {
+            run.close();
+            this.run = null;
+        }
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+        List<ValidationResult> results = new ArrayList<>();
+        boolean bounded = validationContext.getProperty(MAX_FLOWFILES_PER_TRIGGER).isSet() || validationContext.getProperty(MAX_BYTES_PER_TRIGGER).isSet();
+        if (bounded && (validationContext.getProperty(WINDOW_PARALLELISM).asInteger() > 1 || validationContext.getProperty(SCAN_PARTITIONS).asInteger() > 1)) {
+            results.add(new Builder().subject(MAX_FLOWFILES_PER_TRIGGER.getDisplayName()).valid(false)
+                    .explanation("a bounded export resumes a single cursor across triggers and cannot be combined with Window Parallelism or Scan Partitions above 1").build());
+        }
+        if (bounded && validationContext.getProperty(PIPELINE).isSet()) {
+            results.add(new Builder().subject(PIPELINE.getDisplayName()).valid(false)
+                    .explanation("a bounded export keeps its cursor open across triggers, and an aggregation cursor cannot be exempted from the server's idle cursor timeout").build());
+        }
+        if (bounded && validationContext.getProperty(SERIALIZER_THREADS).asInteger() > 0) {
+            results.add(new Builder().subject(SERIALIZER_THREADS.getDisplayName()).valid(false)
+                    .explanation("a bounded export leaves the rest of its cursor for the next trigger, which documents already read ahead would be lost from").build());
+        }
+        if (validationContext.getProperty(CLUSTER_PARTITIONING).asBoolean() && validationContext.getProperty(USE_WATERMARK).asBoolean()) {
+            results.add(new Builder().subject(CLUSTER_PARTITIONING.getDisplayName()).valid(false)
+                    .explanation("a watermark only advances over a leading run of committed windows, which no single node holds when windows are spread over the cluster").build());
+        }
+        if (validationContext.getProperty(MIN_BATCH_SIZE).asInteger() > validationContext.getProperty(MAX_BATCH_SIZE).asInteger()) {
+            results.add(new Builder().subject(MIN_BATCH_SIZE.getDisplayName()).valid(false)
+                    .explanation("Min Batch Size cannot be greater than Max Batch Size").build());
+        }
+        if (validationContext.getProperty(COVERED_PROJECTION).asBoolean() && !validationContext.getProperty(INDEX_HINT).isSet()) {
+            results.add(new Builder().subject(COVERED_PROJECTION.getDisplayName()).valid(false)
+                    .explanation("the covered projection is taken from the index named by Index Hint").build());
+        }
+        if (RECORD_TYPE_RESULT.equals(validationContext.getProperty(TYPE_RESULT_INCREMENTAL).getValue()) && !validationContext.getProperty(RECORD_WRITER).isSet()) {
+            results.add(new Builder().subject(RECORD_WRITER.getDisplayName()).valid(false)
+                    .explanation("a Record Writer is required when the result type is Record").build());
+        }
+        return results;
+    }
+
+    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+        ComponentLog logger = this.getLogger();
+        final ExportSettings settings = this.readSettings(context);
+        final MongoCollection<Document> collection = this.getCollection(context);
+        try {
+            this.registerNode(context);
+        } catch (IOException e) {
+            context.yield();
+            logger.error("Failed to register with the cluster due to {}", new Object[]{e}, e);
+            return;
+        }
+
+        if (isBounded(context)) {
+            this.exportBounded(context, session, settings, collection);
+            return;
+        }
+
+        //TruongLX
+        if (settings.incrementalField != null) {
+            try {
+                ExportRun run = this.planRun(context, settings, collection);
+                int parallelism = context.getProperty(WINDOW_PARALLELISM).asInteger();
+                boolean[] exported = this.exportAll(run.windows, (window, sink) -> this.exportWindow(collection, settings, window, sink), parallelism, context, session);
                 session.commit();
+                for (boolean windowExported : exported) {
+                    run.completeUnit(windowExported);
+                }
+                this.saveProgress(context, run);
             } catch (
-                    RuntimeException var24)
+                    RuntimeException | IOException var24)
 
             {
                 context.yield();
                 session.rollback();
-                logger.error("Failed to execute query {} due to {}", new Object[]{query, var24}, var24);
-            }
-//            try {
-//                int range = context.getProperty(RANGE_INCREMENTAL).isSet() ? context.getProperty(RANGE_INCREMENTAL).asInteger() : 1;
-//                String rsType = context.getProperty(TYPE_RESULT_INCREMENTAL).getValue();
-//                Date fromDate, finishDate;
-//                Calendar calendarTmp = Calendar.getInstance();
-//                try {
-//                    finishDate = FORMAT_DATE.parse(context.getProperty(TO_DATE).evaluateAttributeExpressions().getValue());
-//                } catch (Exception e) {
-//                    finishDate = calendarTmp.getTime();
-//                }
-//                try {
-//                    fromDate = FORMAT_DATE.parse(context.getProperty(FROM_DATE).evaluateAttributeExpressions().getValue());
-//                } catch (Exception e) {
-//                    calendarTmp.add(Calendar.DATE, -1);
-//                    fromDate = calendarTmp.getTime();
-//                }
-//                String query_incremental = context.getProperty(QUERY_INCREMENTAL).evaluateAttributeExpressions().getValue();
-//                Document query1 = context.getProperty(QUERY).isSet() ? Document.parse(context.getProperty(QUERY).evaluateAttributeExpressions().getValue()) : null;
-//                int limit = context.getProperty(LIMIT).isSet() ? context.getProperty(LIMIT).evaluateAttributeExpressions().asInteger() : -1;
-//                Calendar calTo = Calendar.getInstance();
-//                Date toDate = calTo.getTime();
-//                while (fromDate.compareTo(finishDate) <= 0) {
-//                    try {
-//                        calTo.clear();
-//                        calTo.setTime(fromDate);
-//                        calTo.add(Calendar.DATE, range);
-//                        toDate = calTo.getTime();
-//
-//                        if (query1 != null) {
-//                            query1.append(query_incremental, new Document("$gte", fromDate).append("$lt", toDate));
-//                        } else {
-//                            query1 = new Document(query_incremental, new Document("$gte", fromDate).append("$lt", toDate));
-//                        }
-//
-//                        FindIterable<Document> it = collection.find(query1);
-//                        MongoCursor<Document> cursor = it.iterator();
-//                        if (projection != null) {
-//                            it.projection(projection);
-//                        }
-//
-//                        if (sort != null) {
-//                            it.sort(sort);
-//                        }
-//
-//                        if (limit > 0) {
-//                            it.limit(limit);
-//                        }
-//
-//                        if (context.getProperty(BATCH_SIZE).isSet()) {
-//                            it.batchSize(context.getProperty(BATCH_SIZE).evaluateAttributeExpressions().asInteger());
-//                        }
-//                        FlowFile flowFile = null;
-//                        if (!context.getProperty(RESULTS_PER_FLOWFILE).isSet()) {
-//                            while (cursor.hasNext()) {
-//                                flowFile = session.create();
-//                                flowFile = session.write(flowFile, new OutputStreamCallback() {
-//                                    public void process(OutputStream out) throws IOException {
-//                                        String json;
-//                                        if (jsonTypeSetting.equals("Standard")) {
-//                                            json = JsonProcessor.this.mapper.writerWithDefaultPrettyPrinter().writeValueAsString(cursor.next());
-//                                        } else {
-//                                            json = ((Document) cursor.next()).toJson();
-//                                        }
-//
-//                                        IOUtils.write(json, out);
-//                                    }
-//                                });
-//                                flowFile = session.putAttribute(flowFile, CoreAttributes.MIME_TYPE.key(), "application/json");
-//                                session.getProvenanceReporter().receive(flowFile, this.getURI(context));
-//                                session.transfer(flowFile, REL_SUCCESS);
-//                            }
-//                        } else {
-//                            int ceiling = context.getProperty(RESULTS_PER_FLOWFILE).evaluateAttributeExpressions().asInteger();
-//                            if (ceiling >= 99999) {
-//                                List<Document> documents = new ArrayList<>();
-//                                try {
-//                                    while (cursor.hasNext()) {
-//                                        documents.add(cursor.next());
-//                                    }
-//                                    String payload;
-//                                    if (rsType.equals(JSON_TYPE_RESULT)) {
-//                                        payload = this.buildBatch(documents, "Standard");
-//                                    } else {
-//                                        payload = this.buildBatchCsvIncremental(documents);
-//                                    }
-//                                    if (payload != null && !payload.equals("")) {
-//                                        flowFile = session.create();
-//                                        flowFile = session.write(flowFile, new OutputStreamCallback() {
-//                                            public void process(OutputStream out) throws IOException {
-//                                                out.write(payload.getBytes("UTF-8"));
-//                                            }
-//                                        });
-//                                        Map<String, String> stringMap = new HashMap<>();
-//                                        stringMap.put(CoreAttributes.MIME_TYPE.key(), rsType);
-//                                        stringMap.put(CoreAttributes.FILENAME.key(), FORMAT_DATE.format(fromDate));
-//                                        flowFile = session.putAllAttributes(flowFile, stringMap);
-//
-//                                        session.getProvenanceReporter().receive(flowFile, this.getURI(context));
-//                                        session.transfer(flowFile, REL_SUCCESS);
-//                                    }
-//                                } catch (Exception e) {
-//                                    logger.error(fromDate.toString(), e);
-//                                }
-//                            }
-//                        }
-//                    } catch (Exception es) {
-//                        logger.error("increment", es);
-//                    } finally {
-//                        fromDate = toDate;
-//                        if (cursor != null) cursor.close();
-//                    }
-//                }
-//                session.commit();
-//            } catch (Exception ex) {
-//                logger.error("QUERY INCREMENTAL", ex);
-//                context.yield();
-//                session.rollback();
-//
-//            }
-//            return;
+                logger.error("Failed to execute query {} due to {}", new Object[]{settings.query, var24}, var24);
+            }
         } else {
             try
 
             {
-                FindIterable<Document> it = query != null ? collection.find(query) : collection.find();
-                if (projection != null) {
-                    it.projection(projection);
+                if (isPartitionedScan(context, settings)) {
+                    this.exportPartitionedScan(collection, settings, context.getProperty(SCAN_PARTITIONS).asInteger(), context, session);
+                    return;
                 }
-
-                if (sort != null) {
-                    it.sort(sort);
-                }
-
-                if (context.getProperty(LIMIT).isSet()) {
-                    it.limit(context.getProperty(LIMIT).evaluateAttributeExpressions().asInteger());
-                }
-
-                if (context.getProperty(BATCH_SIZE).isSet()) {
-                    it.batchSize(context.getProperty(BATCH_SIZE).evaluateAttributeExpressions().asInteger());
+                ExportRun run = this.planRun(context, settings, collection);
+                if (run == null) {
+                    context.yield();
+                    return;
                 }
-
-                final MongoCursor<Document> cursor = it.iterator();
-                ComponentLog log = this.getLogger();
+                final MongoCursor<?> cursor = openCursor(collection, settings.query, settings);
 
                 try {
-                    FlowFile flowFile = null;
-                    if (!context.getProperty(RESULTS_PER_FLOWFILE).isSet()) {
-                        while (cursor.hasNext()) {
-                            flowFile = session.create();
-                            flowFile = session.write(flowFile, new OutputStreamCallback() {
-                                public void process(OutputStream out) throws IOException {
-                                    String json;
-                                    if (jsonTypeSetting.equals("Standard")) {
-                                        json = JsonProcessor.this.mapper.writerWithDefaultPrettyPrinter().writeValueAsString(cursor.next());
-                                    } else {
-                                        json = ((Document) cursor.next()).toJson();
-                                    }
-
-                                    IOUtils.write(json, out);
-                                }
-                            });
-                            flowFile = session.putAttribute(flowFile, CoreAttributes.MIME_TYPE.key(), "application/json");
-                            session.getProvenanceReporter().receive(flowFile, this.getURI(context));
-                            session.transfer(flowFile, REL_SUCCESS);
-                        }
-                    } else {
-                        int ceiling = context.getProperty(RESULTS_PER_FLOWFILE).evaluateAttributeExpressions().asInteger();
-                        ArrayList batch = new ArrayList();
-
-                        while (cursor.hasNext()) {
-                            batch.add(cursor.next());
-                            if (batch.size() == ceiling) {
-                                try {
-                                    if (log.isDebugEnabled()) {
-                                        log.debug("Writing batch...");
-                                    }
-
-                                    String payload = this.buildBatch(batch, jsonTypeSetting);
-                                    this.writeBatch(payload, context, session);
-                                    batch = new ArrayList();
-                                } catch (IOException var22) {
-                                    this.getLogger().error("Error building batch", var22);
-                                }
-                            }
-                        }
-
-                        if (batch.size() > 0) {
-                            try {
-                                this.writeBatch(this.buildBatch(batch, jsonTypeSetting), context, session);
-                            } catch (IOException var21) {
-                                this.getLogger().error("Error sending remainder of batch", var21);
-                            }
-                        }
-                    }
-
+                    this.exportCursor(cursor, settings, null, new AtomicInteger(), new SessionContentSink(session, this.getURI(context), REL_SUCCESS));
                     session.commit();
                 } finally {
                     cursor.close();
                 }
-            } catch (
-                    RuntimeException var24)
+                run.completeUnit(true);
+                this.saveProgress(context, run);
+            } catch (RuntimeException | IOException var24)
 
             {
                 context.yield();
                 session.rollback();
-                logger.error("Failed to execute query {} due to {}", new Object[]{query, var24}, var24);
+                logger.error("Failed to execute query {} due to {}", new Object[]{settings.query, var24}, var24);
             }
 
         }
@@ -546,24 +1567,55 @@ public class JsonProcessor extends AbstractMongoProcessor {
         QUERY = (new PropertyDescriptor.Builder()).name("Query").description("The selection criteria; must be a valid MongoDB Extended JSON format; if omitted the entire collection will be queried").required(false).expressionLanguageSupported(true).addValidator(DOCUMENT_VALIDATOR).build();
         PROJECTION = (new PropertyDescriptor.Builder()).name("Projection").description("The fields to be returned from the documents in the result set; must be a valid BSON document").required(false).expressionLanguageSupported(true).addValidator(DOCUMENT_VALIDATOR).build();
         SORT = (new PropertyDescriptor.Builder()).name("Sort").description("The fields by which to sort; must be a valid BSON document").required(false).expressionLanguageSupported(true).addValidator(DOCUMENT_VALIDATOR).build();
+        PIPELINE = (new PropertyDescriptor.Builder()).name("pipeline").displayName("Pipeline").description("An aggregation pipeline, as a JSON array of stages, to run instead of a find. The Query and the incremental window are prepended as a $match stage so they can use indexes; Projection, Sort and Limit are ignored and should be expressed as stages. Scan Partitions does not apply, since a pipeline may group across partitions, and a bounded export (Max FlowFiles or Max Bytes Per Trigger) cannot run a Pipeline.").required(false).expressionLanguageSupported(true).addValidator(PIPELINE_VALIDATOR).build();
+        ALLOW_DISK_USE = (new PropertyDescriptor.Builder()).name("allow-disk-use").displayName("Allow Disk Use").description("Whether the server may write temporary files while running the Pipeline, e.g. for large $group or $sort stages.").allowableValues(new String[]{"true", "false"}).defaultValue("false").expressionLanguageSupported(false).required(true).build();
+        INDEX_HINT = (new PropertyDescriptor.Builder()).name("index-hint").displayName("Index Hint").description("An index key pattern such as {\"updatedAt\": 1}, or an index name, that the query and the counts of Max Window Documents are forced to use. Not applied to a Pipeline.").required(false).expressionLanguageSupported(false).addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+        COVERED_PROJECTION = (new PropertyDescriptor.Builder()).name("covered-projection").displayName("Covered Projection").description("When true, the projection is restricted to the fields of the Index Hint index (and to Projection, if set), without _id unless the index holds it, so the query can be answered from the index alone.").allowableValues(new String[]{"true", "false"}).defaultValue("false").expressionLanguageSupported(false).required(true).build();
+        PLAN_CHECK = (new PropertyDescriptor.Builder()).name("plan-check").displayName("Plan Check").description("When the processor is scheduled, explain the query of a window of the last Range days (or the plain query) and, if the winning plan scans the whole collection (COLLSCAN) or sorts in memory (SORT), log a warning or refuse to start.").allowableValues(new String[]{PLAN_CHECK_OFF, PLAN_CHECK_WARN, PLAN_CHECK_FAIL}).defaultValue(PLAN_CHECK_OFF).expressionLanguageSupported(false).required(true).build();
         LIMIT = (new PropertyDescriptor.Builder()).name("Limit").description("The maximum number of elements to return").required(false).expressionLanguageSupported(true).addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
         BATCH_SIZE = (new PropertyDescriptor.Builder()).name("Batch Size").description("The number of elements returned from the server in one batch").required(false).expressionLanguageSupported(true).addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+        MAX_FLOWFILE_SIZE = (new PropertyDescriptor.Builder()).name("max-flowfile-size").displayName("Max FlowFile Size").description("When set, a flow file is closed and a new one started once this much content has been written, measured before compression and checked between documents. Applies to batches and to whole windows (Results Per FlowFile of 99999 or more), whose parts then carry a fragment.index attribute.").required(false).expressionLanguageSupported(false).addValidator(StandardValidators.DATA_SIZE_VALIDATOR).build();
+        SERIALIZER_THREADS = (new PropertyDescriptor.Builder()).name("serializer-threads").displayName("Serializer Threads").description("When above 0, a producer thread reads each cursor ahead into a bounded queue so fetching overlaps with serialization, and batches of Results Per FlowFile documents are serialized (and compressed) by this many worker threads while the trigger thread writes the finished ones in cursor order. 0 fetches, serializes and writes in sequence on the trigger thread. Cannot be combined with Max FlowFiles or Max Bytes Per Trigger.").required(true).expressionLanguageSupported(false).addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).defaultValue("0").build();
+        ADAPTIVE_BATCH_SIZE = (new PropertyDescriptor.Builder()).name("adaptive-batch-size").displayName("Adaptive Batch Size").description("When true, the batch size of each cursor is chosen so that a round trip carries about Target Batch Bytes, from the average document size measured on the previous cursors, and is shrunk further when round trips take longer than Target Round Trip; Batch Size only sets the first one. The batch size used and the averages it came from are written to the mongo.batch.size, mongo.batch.avg.document.bytes and mongo.batch.avg.roundtrip.millis attributes.").allowableValues(new String[]{"true", "false"}).defaultValue("false").expressionLanguageSupported(false).required(true).build();
+        TARGET_BATCH_BYTES = (new PropertyDescriptor.Builder()).name("target-batch-bytes").displayName("Target Batch Bytes").description("The amount of data an adaptive batch aims to carry per round trip.").required(true).expressionLanguageSupported(false).addValidator(StandardValidators.DATA_SIZE_VALIDATOR).defaultValue("4 MB").build();
+        TARGET_ROUND_TRIP = (new PropertyDescriptor.Builder()).name("target-round-trip").displayName("Target Round Trip").description("When set, an adaptive batch is made smaller when the average round trip of the previous cursors took longer than this, in proportion to the excess.").required(false).expressionLanguageSupported(false).addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+        MIN_BATCH_SIZE = (new PropertyDescriptor.Builder()).name("min-batch-size").displayName("Min Batch Size").description("The smallest batch size Adaptive Batch Size may choose.").required(true).expressionLanguageSupported(false).addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).defaultValue("10").build();
+        MAX_BATCH_SIZE = (new PropertyDescriptor.Builder()).name("max-batch-size").displayName("Max Batch Size").description("The largest batch size Adaptive Batch Size may choose.").required(true).expressionLanguageSupported(false).addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).defaultValue("10000").build();
         RESULTS_PER_FLOWFILE = (new PropertyDescriptor.Builder()).name("results-per-flowfile").displayName("Results Per FlowFile").description("How many results to put into a flowfile at once. The whole body will be treated as a JSON array of results.").required(false).expressionLanguageSupported(true).addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
         JSON_EXTENDED = new AllowableValue("Extended", "Extended JSON", "Use MongoDB's \"extended JSON\". This is the JSON generated with toJson() on a MongoDB Document from the Java driver");
         JSON_STANDARD = new AllowableValue("Standard", "Standard JSON", "Generate a JSON document that conforms to typical JSON conventions instead of Mongo-specific conventions.");
+        PRETTY_PRINT = (new PropertyDescriptor.Builder()).name("pretty-print").displayName("Pretty Print").description("Whether to indent the JSON written to flow files. Disable it to write compact JSON, which is smaller and faster to produce.").allowableValues(new String[]{"true", "false"}).defaultValue("true").expressionLanguageSupported(false).required(true).build();
         JSON_TYPE = (new PropertyDescriptor.Builder()).allowableValues(new AllowableValue[]{JSON_EXTENDED, JSON_STANDARD}).defaultValue("Extended").displayName("JSON Type").name("json-type").description("By default, MongoDB's Java driver returns \"extended JSON\". Some of the features of this variant of JSON may cause problems for other JSON parsers that expect only standard JSON types and conventions. This configuration setting  controls whether to use extended JSON or provide a clean view that conforms to standard JSON.").expressionLanguageSupported(false).required(true).build();
 
         //TruongLX
         QUERY_INCREMENTAL = (new PropertyDescriptor.Builder()).name("Field query incremental").description("File query incremental(datetime)").required(false).expressionLanguageSupported(true).addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
         RANGE_INCREMENTAL = (new PropertyDescriptor.Builder()).name("Range").description("Number of date").required(false).expressionLanguageSupported(true).addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).defaultValue("1").build();
+        MAX_WINDOW_DOCUMENTS = (new PropertyDescriptor.Builder()).name("max-window-documents").displayName("Max Window Documents").description("When set, each planned window is counted on the incremental field: a window holding more documents is split in halves, down to Min Window Duration, and adjacent windows that together hold no more are merged, so windows come out of similar size. Each count stops at this many documents.").required(false).expressionLanguageSupported(false).addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+        MIN_WINDOW_DURATION = (new PropertyDescriptor.Builder()).name("min-window-duration").displayName("Min Window Duration").description("The shortest window Max Window Documents may split down to.").required(true).expressionLanguageSupported(false).addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).defaultValue("1 min").build();
         FROM_DATE = (new PropertyDescriptor.Builder()).name("From Date").description("Value start(datetime:yyyy-MM-ddTHH:mm:ss.SSSZ").required(false).expressionLanguageSupported(true).addValidator(StandardValidators.NON_EMPTY_VALIDATOR).defaultValue(date).build();
         TO_DATE = (new PropertyDescriptor.Builder()).name("To Date").description("Value start(datetime:yyyy-MM-ddTHH:mm:ss.SSSZ").required(false).expressionLanguageSupported(true).addValidator(StandardValidators.NON_EMPTY_VALIDATOR).defaultValue(date).build();
 
         JSON_TYPE_RS = new AllowableValue(JSON_TYPE_RESULT, "JSON", "Flow file result json");
         CSV_TYPE_RS = new AllowableValue(CSV_TYPE_RESULT, "CSV", "Flow file result csv");
-
-        TYPE_RESULT_INCREMENTAL = (new PropertyDescriptor.Builder()).allowableValues(new AllowableValue[]{JSON_TYPE_RS, CSV_TYPE_RS}).defaultValue(JSON_TYPE_RESULT).displayName("Result type").name("result-type").description("Result a flow file type: json or csv").expressionLanguageSupported(false).required(true).build();
-
+        RECORD_TYPE_RS = new AllowableValue(RECORD_TYPE_RESULT, "Record", "Flow file written by the configured Record Writer, e.g. Avro");
+        BSON_TYPE_RS = new AllowableValue(BSON_TYPE_RESULT, "BSON", "Flow file of concatenated BSON documents, copied as received from the server without decoding; Adaptive Batch Size does not apply");
+
+        TYPE_RESULT_INCREMENTAL = (new PropertyDescriptor.Builder()).allowableValues(new AllowableValue[]{JSON_TYPE_RS, CSV_TYPE_RS, RECORD_TYPE_RS, BSON_TYPE_RS}).defaultValue(JSON_TYPE_RESULT).displayName("Result type").name("result-type").description("Result a flow file type: json, csv, records written by the Record Writer or raw bson").expressionLanguageSupported(false).required(true).build();
+        OUTPUT_COMPRESSION = (new PropertyDescriptor.Builder()).name("output-compression").displayName("Output Compression").description("Compresses the content of every flow file as it is written. The mime.type attribute is set to the compressed format and the compression attribute to the format name.").allowableValues(new AllowableValue[]{new AllowableValue(OutputCompression.NONE, "None", "Write content uncompressed"), new AllowableValue(OutputCompression.GZIP, "GZIP", "Compress with gzip, using Compression Level"), new AllowableValue(OutputCompression.SNAPPY_FRAMED, "Snappy Framed", "Compress with framed Snappy; much faster than gzip with a lower ratio")}).defaultValue(OutputCompression.NONE).expressionLanguageSupported(false).required(true).build();
+        COMPRESSION_LEVEL = (new PropertyDescriptor.Builder()).name("compression-level").displayName("Compression Level").description("The gzip compression level, from 0 (store only) to 9 (smallest output, slowest). Ignored by the other formats.").required(true).expressionLanguageSupported(false).addValidator(StandardValidators.createLongValidator(0, 9, true)).defaultValue("1").build();
+        RECORD_WRITER = (new PropertyDescriptor.Builder()).name("record-writer").displayName("Record Writer").description("The Record Writer used when the result type is Record. Windows, batches and single documents are written as record sets; BSON values are mapped directly to record fields. The schema offered to the writer is inferred from the leading documents of each flow file (see Record Schema Sample Size) and the inclusive Projection, all fields nullable; a writer configured with a schema registry uses the registry schema instead.").identifiesControllerService(RecordSetWriterFactory.class).required(false).build();
+        RECORD_SCHEMA_SAMPLE_SIZE = (new PropertyDescriptor.Builder()).name("record-schema-sample-size").displayName("Record Schema Sample Size").description("When the result type is Record, the inferred schema merges the fields of this many leading documents of each flow file, which are buffered (on disk beyond a few megabytes) until the schema is known, or until they reach Max FlowFile Size. A field seen with several types becomes a CHOICE of them, with numbers widened to the widest type seen. Fields of later documents that the schema does not hold, or whose values fit none of its types, are left out and logged as a warning.").required(true).expressionLanguageSupported(false).addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).defaultValue("100").build();
+
+        CSV_HEADER_SAMPLE_SIZE = (new PropertyDescriptor.Builder()).name("csv-header-sample-size").displayName("CSV Header Sample Size").description("When the result type is CSV and no inclusive Projection is set, the header is the union of the top-level fields of this many leading documents of each flow file, or of all of them when 0. Sampled documents are buffered on disk beyond a few megabytes, and the header is closed early once they reach Max FlowFile Size. Fields missing from a document are written as empty cells; fields of later documents that are not in the header are left out and logged as a warning; nested documents and arrays are written as JSON.").required(true).expressionLanguageSupported(false).addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).defaultValue("100").build();
+        WINDOW_PARALLELISM = (new PropertyDescriptor.Builder()).name("window-parallelism").displayName("Window Parallelism").description("How many incremental windows are fetched and serialized concurrently. With more than one, each window is spooled to a temporary file by a worker thread and the resulting flow files are still emitted in window order; a window that fails is logged and skipped without affecting the others.").required(true).expressionLanguageSupported(false).addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).defaultValue("1").build();
+        USE_WATERMARK = (new PropertyDescriptor.Builder()).name("use-watermark").displayName("Use Watermark").description("When true, the end of the last fully committed window of the incremental field is kept in cluster state and later runs only export from that watermark up to the current time; To Date is ignored and From Date only applies until a watermark exists. Clear the processor state to export from From Date again.").allowableValues(new String[]{"true", "false"}).defaultValue("false").expressionLanguageSupported(false).required(true).build();
+        WATERMARK_OVERLAP = (new PropertyDescriptor.Builder()).name("watermark-overlap").displayName("Watermark Overlap").description("How far before the stored watermark each run starts, to pick up late-arriving documents. Documents inside the overlap are exported again.").required(true).expressionLanguageSupported(false).addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).defaultValue("0 sec").build();
+        SCAN_PARTITIONS = (new PropertyDescriptor.Builder()).name("scan-partitions").displayName("Scan Partitions").description("When no incremental field is set, split the scan into this many _id ranges, chosen by sampling, and drain each range with its own cursor concurrently. Ranges only match ids of the sampled ids' type (ObjectId, string, number or date), so one more partition exports the ids of any other type; ids of other types are not split. Progress is kept in state so a scan that fails part way resumes with the unfinished ranges only. Ignored when Sort, Limit or Pipeline is set, since a pipeline may group across partitions.").required(true).expressionLanguageSupported(false).addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).defaultValue("1").build();
+        CLUSTER_PARTITIONING = (new PropertyDescriptor.Builder()).name("cluster-partitioning").displayName("Cluster Partitioning").description("When true, run the processor on all nodes and let each node export a disjoint share of the work. The first node to start a run pins its incremental windows or Scan Partitions _id ranges in cluster state; every node then claims its share of the units that are neither done nor claimed by a node that triggered within Node Expiration, and a new run starts once all are done. A plain query without partitions is a single unit, run by one node at a time. Cannot be combined with Use Watermark.").allowableValues(new String[]{"true", "false"}).defaultValue("false").expressionLanguageSupported(false).required(true).build();
+        NODE_IDENTIFIER = (new PropertyDescriptor.Builder()).name("node-identifier").displayName("Node Identifier").description("Identifies this node among the nodes sharing the work under Cluster Partitioning; must be unique per node.").required(true).expressionLanguageSupported(true).addValidator(StandardValidators.NON_EMPTY_VALIDATOR).defaultValue("${hostname(true)}").build();
+        NODE_EXPIRATION = (new PropertyDescriptor.Builder()).name("node-expiration").displayName("Node Expiration").description("A node that has not triggered for this long is no longer given a share of the work, and the units it claimed are taken over by the other nodes. Must be longer than the run schedule and than a trigger takes.").required(true).expressionLanguageSupported(false).addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).defaultValue("10 min").build();
+        MAX_FLOWFILES_PER_TRIGGER = (new PropertyDescriptor.Builder()).name("max-flowfiles-per-trigger").displayName("Max FlowFiles Per Trigger").description("When set, each trigger emits at most this many flow files, commits and returns; the open cursor and window position are kept and the next trigger resumes where this one stopped. The cursor is exempt from the server's idle cursor timeout and is closed when the processor stops, so a bounded export cannot run a Pipeline.").required(false).expressionLanguageSupported(false).addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+        MAX_BYTES_PER_TRIGGER = (new PropertyDescriptor.Builder()).name("max-bytes-per-trigger").displayName("Max Bytes Per Trigger").description("When set, each trigger stops emitting once this much content has been written, commits and returns; the next trigger resumes where this one stopped. The flow file that crosses the limit is completed first.").required(false).expressionLanguageSupported(false).addValidator(StandardValidators.DATA_SIZE_VALIDATOR).build();
 
         List<PropertyDescriptor> _propertyDescriptors = new ArrayList();
         _propertyDescriptors.add(URI);
@@ -572,21 +1624,50 @@ public class JsonProcessor extends AbstractMongoProcessor {
         _propertyDescriptors.add(SSL_CONTEXT_SERVICE);
         _propertyDescriptors.add(CLIENT_AUTH);
         _propertyDescriptors.add(JSON_TYPE);
+        _propertyDescriptors.add(PRETTY_PRINT);
         _propertyDescriptors.add(QUERY);
         _propertyDescriptors.add(PROJECTION);
         _propertyDescriptors.add(SORT);
+        _propertyDescriptors.add(PIPELINE);
+        _propertyDescriptors.add(ALLOW_DISK_USE);
+        _propertyDescriptors.add(INDEX_HINT);
+        _propertyDescriptors.add(COVERED_PROJECTION);
+        _propertyDescriptors.add(PLAN_CHECK);
         _propertyDescriptors.add(LIMIT);
         _propertyDescriptors.add(BATCH_SIZE);
+        _propertyDescriptors.add(ADAPTIVE_BATCH_SIZE);
+        _propertyDescriptors.add(TARGET_BATCH_BYTES);
+        _propertyDescriptors.add(TARGET_ROUND_TRIP);
+        _propertyDescriptors.add(MIN_BATCH_SIZE);
+        _propertyDescriptors.add(MAX_BATCH_SIZE);
         _propertyDescriptors.add(RESULTS_PER_FLOWFILE);
+        _propertyDescriptors.add(MAX_FLOWFILE_SIZE);
+        _propertyDescriptors.add(SERIALIZER_THREADS);
         _propertyDescriptors.add(SSL_CONTEXT_SERVICE);
         _propertyDescriptors.add(CLIENT_AUTH);
 
         //TruongLX:
         _propertyDescriptors.add(QUERY_INCREMENTAL);
         _propertyDescriptors.add(RANGE_INCREMENTAL);
+        _propertyDescriptors.add(MAX_WINDOW_DOCUMENTS);
+        _propertyDescriptors.add(MIN_WINDOW_DURATION);
         _propertyDescriptors.add(FROM_DATE);
         _propertyDescriptors.add(TO_DATE);
         _propertyDescriptors.add(TYPE_RESULT_INCREMENTAL);
+        _propertyDescriptors.add(RECORD_WRITER);
+        _propertyDescriptors.add(RECORD_SCHEMA_SAMPLE_SIZE);
+        _propertyDescriptors.add(OUTPUT_COMPRESSION);
+        _propertyDescriptors.add(COMPRESSION_LEVEL);
+        _propertyDescriptors.add(CSV_HEADER_SAMPLE_SIZE);
+        _propertyDescriptors.add(WINDOW_PARALLELISM);
+        _propertyDescriptors.add(USE_WATERMARK);
+        _propertyDescriptors.add(WATERMARK_OVERLAP);
+        _propertyDescriptors.add(SCAN_PARTITIONS);
+        _propertyDescriptors.add(CLUSTER_PARTITIONING);
+        _propertyDescriptors.add(NODE_IDENTIFIER);
+        _propertyDescriptors.add(NODE_EXPIRATION);
+        _propertyDescriptors.add(MAX_FLOWFILES_PER_TRIGGER);
+        _propertyDescriptors.add(MAX_BYTES_PER_TRIGGER);
 
         propertyDescriptors = Collections.unmodifiableList(_propertyDescriptors);
         Set<Relationship> _relationships = new HashSet();
@@ -0,0 +1,143 @@
+package processors;
+
+import com.mongodb.MongoClient;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the documents a lookup key matched, including keys that matched nothing, for all
+ * concurrent tasks of a processor. Entries expire after the TTL and the least recently used ones
+ * are evicted beyond the maximum entry count or the maximum size, measured as encoded BSON. The
+ * cached documents are shared and must not be modified. The cache is tied to a signature of the
+ * query that filled it and empties itself when that changes.
+ */
+class LookupCache {
+    private static final Codec<Document> CODEC = MongoClient.getDefaultCodecRegistry().get(Document.class);
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final class Entry {
+        private final List<Document> matches;
+        private final long bytes;
+        private final long expiresAt;
+
+        private Entry(List<Document> matches, long bytes, long expiresAt) {
+            this.matches = matches;
+            this.bytes = bytes;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long bytes;
+    private String signature;
+
+    LookupCache(int maxEntries, long maxBytes, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    boolean hasLimits(int maxEntries, long maxBytes, long ttlMillis) {
+        return this.maxEntries == maxEntries && this.maxBytes == maxBytes && this.ttlMillis == ttlMillis;
+    }
+
+    /**
+     * Empties the cache if it was filled by a different query.
+     */
+    synchronized void validate(String signature) {
+        if (!signature.equals(this.signature)) {
+            clear();
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * Returns the documents the key matched, possibly none, or null when the key is not cached.
+     */
+    synchronized List<Document> get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+            remove(key);
+            evictions.incrementAndGet();
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.matches;
+    }
+
+    /**
+     * Caches the documents a key matched and returns how many entries were evicted to make room.
+     * A result larger than the whole cache is not cached.
+     */
+    synchronized int put(String key, List<Document> matches) {
+        long size = ENTRY_OVERHEAD + 2L * key.length();
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        for (Document match : matches) {
+            buffer.truncateToPosition(0);
+            CODEC.encode(new BsonBinaryWriter(buffer), match, EncoderContext.builder().build());
+            size += buffer.getSize();
+        }
+        remove(key);
+        if (size > maxBytes) {
+            return 0;
+        }
+        entries.put(key, new Entry(matches, size, System.currentTimeMillis() + ttlMillis));
+        bytes += size;
+        int evicted = 0;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries || bytes > maxBytes) {
+            bytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+            evicted++;
+        }
+        evictions.addAndGet(evicted);
+        return evicted;
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            bytes -= removed.bytes;
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+}
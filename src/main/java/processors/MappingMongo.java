@@ -1,5 +1,8 @@
 package processors;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.mongodb.client.FindIterable;
@@ -7,6 +10,8 @@ import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import org.apache.commons.io.IOUtils;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.components.ValidationResult;
@@ -14,6 +19,7 @@ import org.apache.nifi.components.Validator;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.Relationship;
@@ -27,12 +33,24 @@ import org.bson.Document;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReference;
 
 @Tags({"mongodb", "read", "get", "cdp", "mapping"})
@@ -58,6 +76,12 @@ public class MappingMongo extends AbstractMongoProcessor {
     private static List<PropertyDescriptor> properties;
     private static Set<Relationship> relationships;
     private ObjectMapper mapper;
+    private String jsonTypeSetting;
+    private volatile LookupCache cache;
+    private volatile PreloadedIndex index;
+    private volatile boolean preloading;
+    private volatile ScheduledExecutorService refresher;
+    private volatile ExecutorService lookupExecutor;
 
     static final PropertyDescriptor QUERY;
     static final PropertyDescriptor PROJECTION;
@@ -75,6 +99,24 @@ public class MappingMongo extends AbstractMongoProcessor {
     static final PropertyDescriptor REPLACE_ID;
     static final AllowableValue REPLACE_ID_TRUE;
     static final AllowableValue REPLACE_ID_FALSE;
+    static final PropertyDescriptor LOOKUP_BATCH_SIZE;
+    static final String PROCESSING_MODE_IN_MEMORY = "in-memory";
+    static final String PROCESSING_MODE_STREAMING = "streaming";
+    static final PropertyDescriptor PROCESSING_MODE;
+    static final PropertyDescriptor FLOWFILES_PER_TRIGGER;
+    static final PropertyDescriptor LOOKUP_CONCURRENCY;
+    static final String LOOKUP_STRATEGY_QUERY = "query";
+    static final String LOOKUP_STRATEGY_PRELOAD = "preload";
+    static final PropertyDescriptor LOOKUP_STRATEGY;
+    static final PropertyDescriptor PRELOAD_REFRESH_INTERVAL;
+    static final PropertyDescriptor PRELOAD_MAX_DOCUMENTS;
+    static final String LOOKUP_CACHE_ENABLED = "enabled";
+    static final String LOOKUP_CACHE_FLUSH_ON_START = "flush-on-start";
+    static final String LOOKUP_CACHE_DISABLED = "disabled";
+    static final PropertyDescriptor LOOKUP_CACHE;
+    static final PropertyDescriptor LOOKUP_CACHE_MAX_ENTRIES;
+    static final PropertyDescriptor LOOKUP_CACHE_MAX_SIZE;
+    static final PropertyDescriptor LOOKUP_CACHE_TTL;
 
     //===============
     public static final Relationship SUCCESS = new Relationship.Builder()
@@ -101,75 +143,548 @@ public class MappingMongo extends AbstractMongoProcessor {
         }
     }
 
+    @OnScheduled
+    public void onScheduled(ProcessContext context) {
+        this.jsonTypeSetting = context.getProperty(JSON_TYPE).getValue();
+        this.configureMapper(this.jsonTypeSetting);
+    }
+
+    /**
+     * Keeps the lookup cache across stop and start unless its limits changed or it is set to be
+     * flushed; it also empties itself when the lookup query changes.
+     */
+    @OnScheduled
+    public void createCache(ProcessContext context) {
+        String mode = context.getProperty(LOOKUP_CACHE).getValue();
+        if (LOOKUP_CACHE_DISABLED.equals(mode) || LOOKUP_STRATEGY_PRELOAD.equals(context.getProperty(LOOKUP_STRATEGY).getValue())) {
+            this.cache = null;
+            return;
+        }
+        int maxEntries = context.getProperty(LOOKUP_CACHE_MAX_ENTRIES).asInteger();
+        long maxBytes = context.getProperty(LOOKUP_CACHE_MAX_SIZE).asDataSize(DataUnit.B).longValue();
+        long ttl = context.getProperty(LOOKUP_CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS);
+        LookupCache cache = this.cache;
+        if (cache == null || LOOKUP_CACHE_FLUSH_ON_START.equals(mode) || !cache.hasLimits(maxEntries, maxBytes, ttl)) {
+            this.cache = new LookupCache(maxEntries, maxBytes, ttl);
+        }
+    }
+
+    /**
+     * With the preload strategy, schedules the lookup collection to be snapshotted again every
+     * refresh interval; a failed refresh keeps the previous snapshot. The first snapshot is taken
+     * by the first trigger, once the client of this schedule is sure to be open, and the
+     * collection is resolved anew for every snapshot.
+     */
+    @OnScheduled
+    public void preload(ProcessContext context) {
+        this.index = null;
+        this.preloading = LOOKUP_STRATEGY_PRELOAD.equals(context.getProperty(LOOKUP_STRATEGY).getValue());
+        if (!this.preloading) {
+            return;
+        }
+        long interval = context.getProperty(PRELOAD_REFRESH_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+        this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "MappingMongo-preload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.refresher.scheduleWithFixedDelay(() -> {
+            try {
+                this.index = this.loadIndex(context);
+            } catch (RuntimeException e) {
+                getLogger().warn("Failed to refresh the preloaded lookup index; keeping the previous snapshot", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes the first snapshot unless another task or a refresh already did.
+     */
+    private synchronized void ensurePreloaded(ProcessContext context) {
+        if (this.index == null) {
+            this.index = this.loadIndex(context);
+        }
+    }
+
+    private PreloadedIndex loadIndex(ProcessContext context) {
+        MongoCollection<Document> collection = this.getCollection(context);
+        Document query = context.getProperty(QUERY).isSet() ? Document.parse(context.getProperty(QUERY).evaluateAttributeExpressions().getValue()) : new Document();
+        Document projection = context.getProperty(PROJECTION).isSet() ? Document.parse(context.getProperty(PROJECTION).evaluateAttributeExpressions().getValue()) : null;
+        Document sort = context.getProperty(SORT).isSet() ? Document.parse(context.getProperty(SORT).evaluateAttributeExpressions().getValue()) : null;
+        String fieldMappingTo = context.getProperty(FIELD_MAPPING_TO).getValue();
+        long start = System.currentTimeMillis();
+        PreloadedIndex index = PreloadedIndex.load(collection, query, lookupProjection(projection, fieldMappingTo), sort, fieldMappingTo, context.getProperty(PRELOAD_MAX_DOCUMENTS).asInteger());
+        getLogger().info("Preloaded {} documents under {} keys ({} bytes) from {} in {} ms",
+                new Object[]{index.getDocumentCount(), index.getKeyCount(), index.getBytes(), collection.getNamespace(), System.currentTimeMillis() - start});
+        return index;
+    }
+
+    @OnScheduled
+    public void createLookupExecutor(ProcessContext context) {
+        int concurrency = context.getProperty(LOOKUP_CONCURRENCY).asInteger();
+        if (concurrency > 1) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            this.lookupExecutor = Executors.newFixedThreadPool(concurrency, runnable -> {
+                Thread thread = new Thread(runnable, "MappingMongo-lookup-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @OnStopped
+    public void shutdownLookupExecutor() {
+        if (this.lookupExecutor != null) {
+            this.lookupExecutor.shutdownNow();
+            this.lookupExecutor = null;
+        }
+    }
+
+    @OnStopped
+    public void stopPreload() {
+        if (this.refresher != null) {
+            this.refresher.shutdownNow();
+            this.refresher = null;
+        }
+        this.preloading = false;
+        this.index = null;
+    }
+
+    @OnStopped
+    public void logCacheStatistics() {
+        LookupCache cache = this.cache;
+        if (cache != null) {
+            getLogger().info("Lookup cache holds {} keys after {} hits, {} misses and {} evictions",
+                    new Object[]{cache.size(), cache.getHits(), cache.getMisses(), cache.getEvictions()});
+        }
+    }
+
+    /**
+     * Renders a BSON input document as a record in the configured JSON type.
+     */
+    private JSONObject toRecord(Document document) throws IOException {
+        String json = this.jsonTypeSetting.equals(JSON_TYPE_STANDARD) ? this.mapper.writeValueAsString(document) : document.toJson();
+        return new JSONObject(json);
+    }
+
+    /**
+     * Reads the incoming records: a JSON array, or concatenated BSON documents when the flow file
+     * is application/bson, rendered as the configured JSON type.
+     */
+    private JSONArray readSourceArray(InputStream in, boolean bson) throws IOException {
+        if (!bson) {
+            return new JSONArray(IOUtils.toString(in));
+        }
+        JSONArray sourceArray = new JSONArray();
+        BsonDocumentReader reader = new BsonDocumentReader(in);
+        while (reader.hasNext()) {
+            sourceArray.put(this.toRecord(reader.next()));
+        }
+        return sourceArray;
+    }
+
+    /**
+     * Returns the documents each key matched: from the preloaded index when there is one, else
+     * from the cache when it holds the key and from one query for all the others, which are then
+     * cached. Adds the cache hits, misses and evictions to the settings' counts.
+     */
+    private Map<String, List<Document>> findMatches(LookupSettings settings, Set<String> keys) {
+        LookupCache cache = settings.cache;
+        AtomicLongArray counts = settings.cacheCounts;
+        PreloadedIndex index = this.index;
+        if (index != null) {
+            Map<String, List<Document>> matches = new HashMap<>();
+            for (String key : keys) {
+                matches.put(key, index.get(key));
+            }
+            return matches;
+        }
+        if (cache == null) {
+            return lookup(settings.collection, settings.query, settings.projection, settings.sort, settings.fieldMappingTo, keys);
+        }
+        Map<String, List<Document>> matches = new HashMap<>();
+        Set<String> missing = new LinkedHashSet<>();
+        for (String key : keys) {
+            List<Document> cached = cache.get(key);
+            if (cached != null) {
+                matches.put(key, cached);
+                counts.incrementAndGet(0);
+            } else {
+                missing.add(key);
+                counts.incrementAndGet(1);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<String, List<Document>> found = lookup(settings.collection, settings.query, settings.projection, settings.sort, settings.fieldMappingTo, missing);
+            for (String key : missing) {
+                List<Document> keyMatches = found.containsKey(key) ? found.get(key) : Collections.emptyList();
+                matches.put(key, keyMatches);
+                counts.addAndGet(2, cache.put(key, keyMatches));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Finds the documents matching any of the keys in one query and groups them by key, each
+     * group in the order of the query's sort. A document whose mapping field is an array is
+     * grouped under every key it holds, as a query per key would have matched it for each.
+     */
+    private Map<String, List<Document>> lookup(MongoCollection<Document> collection, Document query, Document projection, Document sort, String fieldMappingTo, Set<String> keys) {
+        Document chunkQuery = new Document(query);
+        chunkQuery.put(fieldMappingTo, new Document("$in", new ArrayList<>(keys)));
+        FindIterable<Document> it = collection.find(chunkQuery);
+        if (projection != null) {
+            it.projection(projection);
+        }
+        if (sort != null) {
+            it.sort(sort);
+        }
+
+        Map<String, List<Document>> matches = new HashMap<>();
+        try (MongoCursor<Document> cursor = it.iterator()) {
+            while (cursor.hasNext()) {
+                Document response = cursor.next();
+                Set<Object> values = new LinkedHashSet<>();
+                collectValues(response, fieldMappingTo.split("\\."), 0, values);
+                for (Object key : values) {
+                    if (keys.contains(key)) {
+                        matches.computeIfAbsent((String) key, k -> new ArrayList<>()).add(response);
+                    }
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Collects the values at a dotted path, descending into arrays the way a query does.
+     */
+    static void collectValues(Object node, String[] path, int depth, Set<Object> values) {
+        if (node instanceof List) {
+            for (Object element : (List<?>) node) {
+                collectValues(element, path, depth, values);
+            }
+        } else if (depth == path.length) {
+            values.add(node);
+        } else if (node instanceof Map) {
+            collectValues(((Map<?, ?>) node).get(path[depth]), path, depth + 1, values);
+        }
+    }
+
+    /**
+     * Makes sure the projection returns the mapping field, which the results are grouped by.
+     * That field is never copied into the records, so the output is unchanged. Any field set to
+     * 1, _id included, makes the projection an inclusion that needs the field added.
+     */
+    static Document lookupProjection(Document projection, String fieldMappingTo) {
+        if (projection == null) {
+            return null;
+        }
+        Document adjusted = new Document(projection);
+        if (adjusted.containsKey(fieldMappingTo)) {
+            if (!CsvBatchWriter.isIncluded(adjusted.get(fieldMappingTo))) {
+                adjusted.remove(fieldMappingTo);
+            }
+            return adjusted;
+        }
+        boolean inclusion = false;
+        for (Map.Entry<String, Object> entry : adjusted.entrySet()) {
+            if (CsvBatchWriter.isIncluded(entry.getValue())) {
+                inclusion = true;
+                if (fieldMappingTo.startsWith(entry.getKey() + ".")) {
+                    return adjusted;
+                }
+            }
+        }
+        if (inclusion) {
+            adjusted.append(fieldMappingTo, 1);
+        }
+        return adjusted;
+    }
+
+    private static void merge(JSONObject sourceObject, Document response, String fieldMappingTo, boolean replaceKey) {
+        for (String key : response.keySet()) {
+            if (!(key.equalsIgnoreCase("_id") && replaceKey)) {
+                if (!key.equalsIgnoreCase(fieldMappingTo)) {
+                    sourceObject.put(key, response.get(key));
+                }
+            }
+        }
+    }
+
+    /**
+     * Everything needed to look records up, resolved once per trigger.
+     */
+    private static final class LookupSettings {
+        MongoCollection<Document> collection;
+        Document query;
+        Document projection;
+        Document sort;
+        String fieldMappingFrom;
+        String fieldMappingTo;
+        boolean replaceKey;
+        int batchSize;
+        LookupCache cache;
+        int concurrency;
+        final AtomicLongArray cacheCounts = new AtomicLongArray(3);
+    }
+
+    /**
+     * The documents a batch of keys matched, or why looking them up failed.
+     */
+    private static final class LookupResult {
+        final Map<String, List<Document>> matches;
+        final RuntimeException error;
+
+        LookupResult(Map<String, List<Document>> matches, RuntimeException error) {
+            this.matches = matches;
+            this.error = error;
+        }
+    }
+
+    private LookupResult lookupBatch(LookupSettings settings, Set<String> keys) {
+        try {
+            return new LookupResult(findMatches(settings, keys), null);
+        } catch (RuntimeException e) {
+            return new LookupResult(null, e);
+        }
+    }
+
+    /**
+     * Looks up every batch of keys and returns the results in batch order. With a Lookup
+     * concurrency above 1 the batches run on the shared lookup executor, so at most that many
+     * queries of this processor are in flight at once.
+     */
+    private List<LookupResult> lookupBatches(final LookupSettings settings, List<Set<String>> batches) {
+        List<LookupResult> results = new ArrayList<>(batches.size());
+        ExecutorService executor = this.lookupExecutor;
+        if (executor == null || batches.size() <= 1) {
+            for (Set<String> batch : batches) {
+                results.add(lookupBatch(settings, batch));
+            }
+            return results;
+        }
+        List<Future<LookupResult>> pending = new ArrayList<>(batches.size());
+        try {
+            for (final Set<String> batch : batches) {
+                pending.add(executor.submit(() -> lookupBatch(settings, batch)));
+            }
+            for (Future<LookupResult> future : pending) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException(e);
+        } catch (ExecutionException e) {
+            throw new ProcessException(e.getCause());
+        } finally {
+            for (Future<LookupResult> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private interface RecordReader {
+        /**
+         * Returns the next record, or null after the last one.
+         */
+        JSONObject next() throws IOException;
+    }
+
+    private static Set<String> keysOf(List<JSONObject> records, LookupSettings settings) {
+        Set<String> keys = new LinkedHashSet<>();
+        for (JSONObject record : records) {
+            keys.add(record.getString(settings.fieldMappingFrom));
+        }
+        return keys;
+    }
+
+    private static void mergeAll(List<JSONObject> records, Map<String, List<Document>> matches, LookupSettings settings) {
+        for (JSONObject sourceObject : records) {
+            List<Document> responses = matches.get(sourceObject.getString(settings.fieldMappingFrom));
+            if (responses != null) {
+                for (Document response : responses) {
+                    merge(sourceObject, response, settings.fieldMappingTo, settings.replaceKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * Enriches the records in one pass from input to output, holding Lookup concurrency batches
+     * of records at a time: a JSON array is read element by element with a streaming parser, BSON
+     * document by document, and the batches read are looked up together and written out in order
+     * before the next are read. The records of a batch whose lookup failed are left out and added
+     * to failed instead. Returns the number of records written.
+     */
+    private int streamRecords(InputStream in, OutputStream out, boolean bson, LookupSettings settings, List<JSONObject> failed) throws IOException {
+        RecordReader records;
+        if (bson) {
+            final BsonDocumentReader reader = new BsonDocumentReader(in);
+            records = () -> reader.hasNext() ? this.toRecord(reader.next()) : null;
+        } else {
+            final JsonParser parser = this.mapper.getFactory().createParser(in);
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("The flow file content is not a JSON array");
+            }
+            records = () -> {
+                JsonToken token = parser.nextToken();
+                if (token == null || token == JsonToken.END_ARRAY) {
+                    return null;
+                }
+                JsonNode element = this.mapper.readTree(parser);
+                return new JSONObject(element.toString());
+            };
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.write('[');
+        List<List<JSONObject>> chunks = new ArrayList<>(settings.concurrency);
+        List<JSONObject> chunk = new ArrayList<>(settings.batchSize);
+        int written = 0;
+        JSONObject record = records.next();
+        while (record != null) {
+            chunk.add(record);
+            record = records.next();
+            if (chunk.size() == settings.batchSize || record == null) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>(settings.batchSize);
+            }
+            if (chunks.size() == settings.concurrency || (record == null && !chunks.isEmpty())) {
+                List<Set<String>> batches = new ArrayList<>(chunks.size());
+                for (List<JSONObject> pending : chunks) {
+                    batches.add(keysOf(pending, settings));
+                }
+                List<LookupResult> results = lookupBatches(settings, batches);
+                for (int i = 0; i < chunks.size(); i++) {
+                    RuntimeException e = results.get(i).error;
+                    if (e != null) {
+                        getLogger().error("Failed to execute query {} due to {}", new Object[]{settings.query, e}, e);
+                        failed.addAll(chunks.get(i));
+                        continue;
+                    }
+                    mergeAll(chunks.get(i), results.get(i).matches, settings);
+                    for (JSONObject enriched : chunks.get(i)) {
+                        if (written > 0) {
+                            writer.write(',');
+                        }
+                        writer.write(enriched.toString());
+                        written++;
+                    }
+                }
+                chunks.clear();
+            }
+        }
+        writer.write(']');
+        writer.flush();
+        return written;
+    }
+
     @Override
     public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
         ComponentLog logger = this.getLogger();
-        Document query = context.getProperty(QUERY).isSet() ? Document.parse(context.getProperty(QUERY).evaluateAttributeExpressions().getValue()) : new Document();
+        int flowFilesPerTrigger = context.getProperty(FLOWFILES_PER_TRIGGER).asInteger();
+        List<FlowFile> flowFiles = session.get(flowFilesPerTrigger);
+        if (flowFiles.isEmpty()) {
+            return;
+        }
+        if (this.preloading) {
+            try {
+                this.ensurePreloaded(context);
+            } catch (RuntimeException e) {
+                context.yield();
+                session.rollback();
+                logger.error("Failed to preload the lookup index due to {}", new Object[]{e}, e);
+                return;
+            }
+        }
+
+        final LookupSettings settings = new LookupSettings();
+        settings.query = context.getProperty(QUERY).isSet() ? Document.parse(context.getProperty(QUERY).evaluateAttributeExpressions().getValue()) : new Document();
         Document projection = context.getProperty(PROJECTION).isSet() ? Document.parse(context.getProperty(PROJECTION).evaluateAttributeExpressions().getValue()) : null;
-        Document sort = context.getProperty(SORT).isSet() ? Document.parse(context.getProperty(SORT).evaluateAttributeExpressions().getValue()) : null;
-        final String jsonTypeSetting = context.getProperty(JSON_TYPE).getValue();
-        this.configureMapper(jsonTypeSetting);
-        MongoCollection collection = this.getCollection(context);
+        settings.sort = context.getProperty(SORT).isSet() ? Document.parse(context.getProperty(SORT).evaluateAttributeExpressions().getValue()) : null;
+        settings.collection = this.getCollection(context);
 
         // HieuLT4
-        String fieldMappingFrom = context.getProperty(FIELD_MAPPING_FROM).getValue();
-        String fieldMappingTo = context.getProperty(FIELD_MAPPING_TO).getValue();
-        Boolean replaceKey = context.getProperty(REPLACE_ID).asBoolean();
+        settings.fieldMappingFrom = context.getProperty(FIELD_MAPPING_FROM).getValue();
+        settings.fieldMappingTo = context.getProperty(FIELD_MAPPING_TO).getValue();
+        settings.replaceKey = context.getProperty(REPLACE_ID).asBoolean();
+        settings.batchSize = context.getProperty(LOOKUP_BATCH_SIZE).asInteger();
+        settings.concurrency = context.getProperty(LOOKUP_CONCURRENCY).asInteger();
+        settings.projection = lookupProjection(projection, settings.fieldMappingTo);
+        settings.cache = this.cache;
+        if (settings.cache != null) {
+            settings.cache.validate(context.getProperty(DATABASE_NAME).evaluateAttributeExpressions().getValue() + "." + context.getProperty(COLLECTION_NAME).evaluateAttributeExpressions().getValue()
+                    + "/" + settings.query.toJson() + "/" + (settings.projection != null ? settings.projection.toJson() : "") + "/" + (settings.sort != null ? settings.sort.toJson() : "") + "/" + settings.fieldMappingTo);
+        }
 
-        final AtomicReference<String> value = new AtomicReference<>();
+        if (PROCESSING_MODE_STREAMING.equals(context.getProperty(PROCESSING_MODE).getValue())) {
+            for (FlowFile flowFile : flowFiles) {
+                this.streamFlowFile(flowFile, settings, session);
+            }
+            this.adjustCacheCounters(session, settings);
+            return;
+        }
+        if (flowFilesPerTrigger > 1) {
+            this.enrichCoalesced(flowFiles, settings, session);
+            this.adjustCacheCounters(session, settings);
+            return;
+        }
+
+        FlowFile flowfile = flowFiles.get(0);
+        final boolean bson = isBson(flowfile);
 
-        FlowFile flowfile = session.get();
+        final AtomicReference<String> value = new AtomicReference<>();
+        final List<JSONObject> failedRecords = new ArrayList<>();
+        final AtomicInteger enrichedCount = new AtomicInteger();
         try {
             session.read(flowfile, new InputStreamCallback() {
                 @Override
                 public void process(InputStream in) throws IOException {
 
-                    String json = IOUtils.toString(in);
-                    JSONArray sourceArray = new JSONArray(json);
-                    for (int i = 0; i < sourceArray.length(); i++) {
-                        JSONObject sourceObject = sourceArray.getJSONObject(i);
-                        String valueMapping = sourceObject.getString(fieldMappingFrom);
-
-                        try {
-                            query.append(fieldMappingTo, valueMapping);
-                            final FindIterable<Document> it = query != null ? collection.find(query) : collection.find();
-                            if (projection != null) {
-                                it.projection(projection);
-                            }
-                            if (sort != null) {
-                                it.sort(sort);
-                            }
-
-                            final MongoCursor<Document> cursor = it.iterator();
-                            ComponentLog log = getLogger();
-                            try {
-                                Document response = null;
-                                while (cursor.hasNext()) {
-                                    response = cursor.next();
-                                    getLogger().info(response.toJson());
-                                    for (String key : response.keySet()) {
-                                        if (!(key.equalsIgnoreCase("_id") && replaceKey)) {
-                                            if (!key.equalsIgnoreCase(fieldMappingTo)) {
-                                                sourceObject.put(key, response.get(key));
-                                            }
-                                        }
-                                    }
-                                }
-                            } finally {
-                                cursor.close();
-                            }
-                        } catch (final RuntimeException e) {
-                            context.yield();
-                            session.rollback();
-                            logger.error("Failed to execute query {} due to {}", new Object[]{query, e}, e);
+                    JSONArray sourceArray = readSourceArray(in, bson);
+                    List<List<JSONObject>> chunks = new ArrayList<>();
+                    List<Set<String>> batches = new ArrayList<>();
+                    for (int start = 0; start < sourceArray.length(); start += settings.batchSize) {
+                        List<JSONObject> chunk = new ArrayList<>();
+                        for (int i = start; i < Math.min(sourceArray.length(), start + settings.batchSize); i++) {
+                            chunk.add(sourceArray.getJSONObject(i));
                         }
+                        chunks.add(chunk);
+                        batches.add(keysOf(chunk, settings));
                     }
-                    value.set(sourceArray.toString());
+
+                    List<LookupResult> results = lookupBatches(settings, batches);
+                    List<JSONObject> enriched = new ArrayList<>();
+                    for (int i = 0; i < chunks.size(); i++) {
+                        RuntimeException e = results.get(i).error;
+                        if (e != null) {
+                            logger.error("Failed to execute query {} due to {}", new Object[]{settings.query, e}, e);
+                            failedRecords.addAll(chunks.get(i));
+                            continue;
+                        }
+                        mergeAll(chunks.get(i), results.get(i).matches, settings);
+                        enriched.addAll(chunks.get(i));
+                    }
+                    enrichedCount.set(enriched.size());
+                    value.set(new JSONArray(enriched).toString());
                 }
             });
         } catch (Exception ex) {
-            ex.printStackTrace();
-            getLogger().error("Failed to read json string.");
+            logger.error("Failed to read records from {} due to {}", new Object[]{flowfile, ex}, ex);
+            session.transfer(flowfile, FAILURE);
+            this.adjustCacheCounters(session, settings);
+            return;
+        }
+        if (!failedRecords.isEmpty()) {
+            if (enrichedCount.get() == 0) {
+                session.transfer(flowfile, FAILURE);
+                this.adjustCacheCounters(session, settings);
+                return;
+            }
+            this.transferFailedRecords(session, flowfile, failedRecords);
         }
 
         String results = value.get();
@@ -187,6 +702,130 @@ public class MappingMongo extends AbstractMongoProcessor {
         });
 
         session.transfer(flowfile, SUCCESS);
+        this.adjustCacheCounters(session, settings);
+    }
+
+    private static boolean isBson(FlowFile flowFile) {
+        return JsonProcessor.BSON_TYPE_RESULT.equals(flowFile.getAttribute(CoreAttributes.MIME_TYPE.key()));
+    }
+
+    private void streamFlowFile(FlowFile flowFile, final LookupSettings settings, ProcessSession session) {
+        final boolean bson = isBson(flowFile);
+        final List<JSONObject> failedRecords = new ArrayList<>();
+        final AtomicInteger written = new AtomicInteger();
+        try {
+            flowFile = session.write(flowFile, (in, out) -> written.set(streamRecords(in, out, bson, settings, failedRecords)));
+        } catch (RuntimeException e) {
+            getLogger().error("Failed to enrich {} due to {}", new Object[]{flowFile, e}, e);
+            session.transfer(flowFile, FAILURE);
+            return;
+        }
+        if (!failedRecords.isEmpty()) {
+            this.transferFailedRecords(session, flowFile, failedRecords);
+            if (written.get() == 0) {
+                // every lookup failed; the failed records are all the flow file held
+                session.remove(flowFile);
+                return;
+            }
+        }
+        flowFile = session.putAttribute(flowFile, CoreAttributes.MIME_TYPE.key(), "application/json");
+        session.transfer(flowFile, SUCCESS);
+    }
+
+    /**
+     * Enriches several flow files with one set of lookups: their keys are deduplicated and looked
+     * up in batches of Lookup batch size, and each flow file is then written on its own. A flow
+     * file that cannot be read goes to fail without affecting the others; the records whose keys
+     * were in a batch that failed go to fail on their own, as a child of their flow file.
+     */
+    private void enrichCoalesced(List<FlowFile> flowFiles, LookupSettings settings, ProcessSession session) {
+        ComponentLog logger = getLogger();
+        Map<FlowFile, List<JSONObject>> recordsByFlowFile = new LinkedHashMap<>();
+        Map<FlowFile, Set<String>> keysByFlowFile = new HashMap<>();
+        Set<String> keys = new LinkedHashSet<>();
+        for (FlowFile flowFile : flowFiles) {
+            final boolean bson = isBson(flowFile);
+            final List<JSONObject> records = new ArrayList<>();
+            try {
+                session.read(flowFile, in -> {
+                    JSONArray sourceArray = readSourceArray(in, bson);
+                    for (int i = 0; i < sourceArray.length(); i++) {
+                        records.add(sourceArray.getJSONObject(i));
+                    }
+                });
+                Set<String> flowFileKeys = keysOf(records, settings);
+                recordsByFlowFile.put(flowFile, records);
+                keysByFlowFile.put(flowFile, flowFileKeys);
+                keys.addAll(flowFileKeys);
+            } catch (RuntimeException e) {
+                logger.error("Failed to read records from {} due to {}", new Object[]{flowFile, e}, e);
+                session.transfer(flowFile, FAILURE);
+            }
+        }
+
+        List<Set<String>> batches = new ArrayList<>();
+        Set<String> batch = null;
+        for (String key : keys) {
+            if (batch == null || batch.size() == settings.batchSize) {
+                batch = new LinkedHashSet<>();
+                batches.add(batch);
+            }
+            batch.add(key);
+        }
+        Map<String, List<Document>> matches = new HashMap<>();
+        Set<String> failedKeys = new HashSet<>();
+        List<LookupResult> lookups = lookupBatches(settings, batches);
+        for (int i = 0; i < batches.size(); i++) {
+            LookupResult result = lookups.get(i);
+            if (result.error != null) {
+                logger.error("Failed to execute query {} due to {}", new Object[]{settings.query, result.error}, result.error);
+                failedKeys.addAll(batches.get(i));
+            } else {
+                matches.putAll(result.matches);
+            }
+        }
+
+        for (Map.Entry<FlowFile, List<JSONObject>> entry : recordsByFlowFile.entrySet()) {
+            FlowFile flowFile = entry.getKey();
+            List<JSONObject> records = entry.getValue();
+            if (!Collections.disjoint(keysByFlowFile.get(flowFile), failedKeys)) {
+                List<JSONObject> failedRecords = new ArrayList<>();
+                records = new ArrayList<>();
+                for (JSONObject record : entry.getValue()) {
+                    (failedKeys.contains(record.getString(settings.fieldMappingFrom)) ? failedRecords : records).add(record);
+                }
+                if (records.isEmpty()) {
+                    session.transfer(flowFile, FAILURE);
+                    continue;
+                }
+                this.transferFailedRecords(session, flowFile, failedRecords);
+            }
+            mergeAll(records, matches, settings);
+            final String results = new JSONArray(records).toString();
+            flowFile = session.write(flowFile, out -> out.write(results.getBytes()));
+            flowFile = session.putAttribute(flowFile, CoreAttributes.MIME_TYPE.key(), "application/json");
+            session.transfer(flowFile, SUCCESS);
+        }
+    }
+
+    /**
+     * Sends the records whose lookup failed to fail, in their input order, as a child of the flow
+     * file that held them, so that the rest of it can still succeed.
+     */
+    private void transferFailedRecords(ProcessSession session, FlowFile parent, List<JSONObject> failedRecords) {
+        final String content = new JSONArray(failedRecords).toString();
+        FlowFile failed = session.create(parent);
+        failed = session.write(failed, out -> out.write(content.getBytes(StandardCharsets.UTF_8)));
+        failed = session.putAttribute(failed, CoreAttributes.MIME_TYPE.key(), "application/json");
+        session.transfer(failed, FAILURE);
+    }
+
+    private void adjustCacheCounters(ProcessSession session, LookupSettings settings) {
+        if (settings.cache != null) {
+            session.adjustCounter("Lookup cache hits", settings.cacheCounts.get(0), false);
+            session.adjustCounter("Lookup cache misses", settings.cacheCounts.get(1), false);
+            session.adjustCounter("Lookup cache evictions", settings.cacheCounts.get(2), false);
+        }
     }
 
     @Override
@@ -214,6 +853,17 @@ public class MappingMongo extends AbstractMongoProcessor {
         REPLACE_ID_TRUE = new AllowableValue("true", "true", "replace id");
         REPLACE_ID_FALSE = new AllowableValue("false", "false", "not replace id");
         REPLACE_ID = new PropertyDescriptor.Builder().allowableValues(new AllowableValue[]{REPLACE_ID_FALSE,REPLACE_ID_TRUE}).name("Replace key").description("Replace id when mapping").addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+        LOOKUP_CACHE = new PropertyDescriptor.Builder().name("Lookup cache").description("Whether the documents matched by each key are cached for all tasks of this processor. With enabled the cache is kept when the processor is stopped and started again; flush-on-start empties it on every start. Not used with the preload strategy.").allowableValues(LOOKUP_CACHE_ENABLED, LOOKUP_CACHE_FLUSH_ON_START, LOOKUP_CACHE_DISABLED).defaultValue(LOOKUP_CACHE_DISABLED).required(true).build();
+        LOOKUP_CACHE_MAX_ENTRIES = new PropertyDescriptor.Builder().name("Lookup cache max entries").description("How many keys the lookup cache holds before evicting the least recently used").required(true).defaultValue("10000").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+        LOOKUP_CACHE_MAX_SIZE = new PropertyDescriptor.Builder().name("Lookup cache max size").description("How much matched data, as BSON, the lookup cache holds before evicting the least recently used keys").required(true).defaultValue("64 MB").addValidator(StandardValidators.DATA_SIZE_VALIDATOR).build();
+        LOOKUP_CACHE_TTL = new PropertyDescriptor.Builder().name("Lookup cache TTL").description("How long a cached key is used before it is looked up again").required(true).defaultValue("10 min").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+        LOOKUP_CONCURRENCY = new PropertyDescriptor.Builder().name("Lookup concurrency").description("How many lookup batches of this processor may query Mongo at once, across all its tasks. Records keep their order. The records of a batch whose lookup failed are sent to fail on their own, as a child flow file; the others are still enriched and sent to success.").required(true).defaultValue("1").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+        FLOWFILES_PER_TRIGGER = new PropertyDescriptor.Builder().name("FlowFiles per trigger").description("How many flow files are taken per trigger. Above 1, the keys of all of them are deduplicated and looked up together (except in streaming mode, where each is streamed on its own), each flow file is written separately, and one that fails goes to fail without affecting the others.").required(true).defaultValue("1").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+        PROCESSING_MODE = new PropertyDescriptor.Builder().name("Processing mode").description("in-memory reads the whole input array before enriching it. streaming reads, enriches and writes one Lookup batch size of records at a time, so memory does not grow with the flow file; a flow file that cannot be enriched is routed to fail unchanged.").allowableValues(PROCESSING_MODE_IN_MEMORY, PROCESSING_MODE_STREAMING).defaultValue(PROCESSING_MODE_IN_MEMORY).required(true).build();
+        LOOKUP_STRATEGY = new PropertyDescriptor.Builder().name("Lookup strategy").description("How records are looked up: query asks Mongo for every batch of records; preload snapshots the documents of Query into memory on the first trigger and on every Preload refresh interval, and looks up every record locally. Meant for small reference collections that change rarely.").allowableValues(LOOKUP_STRATEGY_QUERY, LOOKUP_STRATEGY_PRELOAD).defaultValue(LOOKUP_STRATEGY_QUERY).required(true).build();
+        PRELOAD_REFRESH_INTERVAL = new PropertyDescriptor.Builder().name("Preload refresh interval").description("How often the preloaded snapshot is replaced by a fresh one").required(true).defaultValue("1 hour").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+        PRELOAD_MAX_DOCUMENTS = new PropertyDescriptor.Builder().name("Preload max documents").description("The first trigger fails, leaving its flow files queued, and a refresh keeps the previous snapshot, when Query matches more documents than this").required(true).defaultValue("1000000").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+        LOOKUP_BATCH_SIZE = new PropertyDescriptor.Builder().name("Lookup batch size").description("How many records are looked up with a single $in query on Field mapping to").required(true).defaultValue("100").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
 
         final List<PropertyDescriptor> _propertyDescriptors = new ArrayList<>();
         _propertyDescriptors.add(URI);
@@ -230,6 +880,17 @@ public class MappingMongo extends AbstractMongoProcessor {
         _propertyDescriptors.add(FIELD_MAPPING_FROM);
         _propertyDescriptors.add(FIELD_MAPPING_TO);
         _propertyDescriptors.add(REPLACE_ID);
+        _propertyDescriptors.add(LOOKUP_BATCH_SIZE);
+        _propertyDescriptors.add(LOOKUP_CONCURRENCY);
+        _propertyDescriptors.add(PROCESSING_MODE);
+        _propertyDescriptors.add(FLOWFILES_PER_TRIGGER);
+        _propertyDescriptors.add(LOOKUP_STRATEGY);
+        _propertyDescriptors.add(PRELOAD_REFRESH_INTERVAL);
+        _propertyDescriptors.add(PRELOAD_MAX_DOCUMENTS);
+        _propertyDescriptors.add(LOOKUP_CACHE);
+        _propertyDescriptors.add(LOOKUP_CACHE_MAX_ENTRIES);
+        _propertyDescriptors.add(LOOKUP_CACHE_MAX_SIZE);
+        _propertyDescriptors.add(LOOKUP_CACHE_TTL);
         properties = Collections.unmodifiableList(_propertyDescriptors);
 
         final Set<Relationship> _relationships = new HashSet<>();
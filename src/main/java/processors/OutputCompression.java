@@ -0,0 +1,53 @@
+package processors;
+
+import org.apache.nifi.stream.io.NonCloseableOutputStream;
+import org.xerial.snappy.SnappyFramedOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The compression formats flow file content can be written in, applied as a stream wrapper
+ * between the document writers and the content repository.
+ */
+public class OutputCompression {
+    public static final String NONE = "none";
+    public static final String GZIP = "gzip";
+    public static final String SNAPPY_FRAMED = "snappy-framed";
+
+    private OutputCompression() {
+    }
+
+    /**
+     * Wraps the stream so that everything written to the returned stream is compressed into it.
+     * Closing the returned stream finishes the compressed data but leaves the target open. The
+     * level only applies to gzip.
+     */
+    public static OutputStream wrap(OutputStream out, String format, final int level) throws IOException {
+        OutputStream target = new NonCloseableOutputStream(out);
+        switch (format) {
+            case GZIP:
+                return new GZIPOutputStream(target, 65536) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            case SNAPPY_FRAMED:
+                return new SnappyFramedOutputStream(target);
+            default:
+                return target;
+        }
+    }
+
+    public static String mimeType(String format) {
+        switch (format) {
+            case GZIP:
+                return "application/gzip";
+            case SNAPPY_FRAMED:
+                return "application/x-snappy-framed";
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package processors;
+
+import com.mongodb.MongoInterruptedException;
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCursor;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a cursor ahead on a producer thread into a bounded queue, so the next getMore is already
+ * in flight while the caller serializes and writes the documents it has. The wrapped cursor is
+ * only touched by the producer until {@link #close} has stopped it. A failure of the producer is
+ * rethrown to the caller once the documents read before it have been consumed.
+ */
+class PrefetchingCursor<T> implements MongoCursor<T> {
+    private static final Object END = new Object();
+
+    private static final class Failure {
+        private final RuntimeException exception;
+
+        private Failure(RuntimeException exception) {
+            this.exception = exception;
+        }
+    }
+
+    private final MongoCursor<T> delegate;
+    private final BlockingQueue<Object> queue;
+    private final Future<?> producer;
+    private volatile boolean closed;
+    private Object next;
+
+    PrefetchingCursor(MongoCursor<T> delegate, int capacity, ExecutorService executor) {
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.producer = executor.submit(() -> {
+            try {
+                while (!closed && delegate.hasNext()) {
+                    put(delegate.next());
+                }
+                put(END);
+            } catch (RuntimeException e) {
+                put(new Failure(e));
+            }
+            return null;
+        });
+    }
+
+    private void put(Object item) throws InterruptedException {
+        while (!closed && !queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+            // the consumer is behind; wait for room or for close()
+        }
+    }
+
+    private Object take() {
+        if (next == null) {
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MongoInterruptedException("Interrupted while waiting for prefetched documents", e);
+            }
+        }
+        if (next instanceof Failure) {
+            throw ((Failure) next).exception;
+        }
+        return next;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return take() != END;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        Object item = take();
+        if (item == END) {
+            throw new NoSuchElementException();
+        }
+        next = null;
+        return (T) item;
+    }
+
+    @Override
+    public T tryNext() {
+        if (next == null) {
+            next = queue.poll();
+            if (next == null) {
+                return null;
+            }
+        }
+        return hasNext() ? next() : null;
+    }
+
+    @Override
+    public ServerCursor getServerCursor() {
+        return delegate.getServerCursor();
+    }
+
+    @Override
+    public ServerAddress getServerAddress() {
+        return delegate.getServerAddress();
+    }
+
+    /**
+     * Stops the producer, waiting for a getMore it has in flight, and closes the wrapped cursor.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.clear();
+        try {
+            producer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ignored) {
+            // already handed to the consumer as a Failure
+        } finally {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package processors;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import org.bson.ByteBuf;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A snapshot of a lookup collection held in memory and keyed by the mapping field. The
+ * documents of each key are kept as one array of concatenated BSON, in the order of the
+ * snapshot's sort, and decoded on every lookup, so a snapshot costs about the size of its BSON
+ * and one object per key. Snapshots are immutable and replaced as a whole on refresh.
+ */
+class PreloadedIndex {
+    private static final Codec<Document> CODEC = MongoClient.getDefaultCodecRegistry().get(Document.class);
+
+    private final Map<String, byte[]> documents;
+    private final int documentCount;
+    private final long bytes;
+
+    private PreloadedIndex(Map<String, byte[]> documents, int documentCount, long bytes) {
+        this.documents = documents;
+        this.documentCount = documentCount;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Reads every document the query matches and indexes it under each string value of the
+     * mapping field, as a query on that value would have matched it.
+     *
+     * @throws IllegalStateException if the query matches more than maxDocuments documents
+     */
+    static PreloadedIndex load(MongoCollection<Document> collection, Document query, Document projection, Document sort, String fieldMappingTo, int maxDocuments) {
+        FindIterable<RawBsonDocument> it = collection.withDocumentClass(RawBsonDocument.class).find(query);
+        if (projection != null) {
+            it.projection(projection);
+        }
+        if (sort != null) {
+            it.sort(sort);
+        }
+
+        String[] path = fieldMappingTo.split("\\.");
+        Map<String, ByteArrayOutputStream> building = new HashMap<>();
+        int documentCount = 0;
+        long bytes = 0;
+        try (MongoCursor<RawBsonDocument> cursor = it.iterator()) {
+            while (cursor.hasNext()) {
+                RawBsonDocument document = cursor.next();
+                if (++documentCount > maxDocuments) {
+                    throw new IllegalStateException(collection.getNamespace() + " holds more than " + maxDocuments + " documents to preload");
+                }
+                Set<Object> values = new LinkedHashSet<>();
+                MappingMongo.collectValues(document.decode(CODEC), path, 0, values);
+                ByteBuf buffer = document.getByteBuffer();
+                byte[] encoded = new byte[buffer.remaining()];
+                buffer.get(encoded);
+                for (Object value : values) {
+                    if (value instanceof String) {
+                        building.computeIfAbsent((String) value, key -> new ByteArrayOutputStream(encoded.length)).write(encoded, 0, encoded.length);
+                        bytes += encoded.length;
+                    }
+                }
+            }
+        }
+        Map<String, byte[]> documents = new HashMap<>(building.size() * 4 / 3 + 1);
+        for (Map.Entry<String, ByteArrayOutputStream> entry : building.entrySet()) {
+            documents.put(entry.getKey(), entry.getValue().toByteArray());
+        }
+        return new PreloadedIndex(documents, documentCount, bytes);
+    }
+
+    /**
+     * Returns new copies of the documents the key matched, possibly none.
+     */
+    List<Document> get(String key) {
+        byte[] encoded = documents.get(key);
+        if (encoded == null) {
+            return Collections.emptyList();
+        }
+        List<Document> matches = new ArrayList<>(1);
+        BsonDocumentReader reader = new BsonDocumentReader(new ByteArrayInputStream(encoded));
+        while (reader.hasNext()) {
+            matches.add(reader.next());
+        }
+        return matches;
+    }
+
+    int getKeyCount() {
+        return documents.size();
+    }
+
+    int getDocumentCount() {
+        return documentCount;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+}
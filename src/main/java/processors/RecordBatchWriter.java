@@ -0,0 +1,151 @@
+package processors;
+
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.stream.io.NonCloseableOutputStream;
+import org.bson.Document;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Writes documents as one record set through a configured Record Writer straight into a flow
+ * file's OutputStream. The first sampled documents are held in a {@link DocumentSpillBuffer}
+ * until the writer is created; their merged fields (plus any projected ones) make up the inferred
+ * schema offered to the Record Writer, and a writer that takes its schema from a registry uses
+ * that schema instead. Fields the schema does not hold are left out and reported once per record
+ * set.
+ */
+public class RecordBatchWriter implements Closeable {
+    private static final long SAMPLE_MEMORY_THRESHOLD = 8L * 1024 * 1024;
+
+    private final OutputStream out;
+    private final RecordSetWriterFactory factory;
+    private final ComponentLog logger;
+    private final List<String> projectedFields;
+    private final Map<String, String> variables;
+    private final int sampleSize;
+    private final Map<String, BsonRecordConverter.Inferred> sampledFields = new LinkedHashMap<>();
+    private final Set<String> dropped = new TreeSet<>();
+    private DocumentSpillBuffer sample;
+    private RecordSetWriter writer;
+    private RecordSchema schema;
+    private int count;
+    private int droppedCount;
+
+    public RecordBatchWriter(OutputStream out, RecordSetWriterFactory factory, ComponentLog logger, List<String> projectedFields, Map<String, String> variables, int sampleSize) {
+        this.out = out;
+        this.factory = factory;
+        this.logger = logger;
+        this.projectedFields = projectedFields;
+        this.variables = variables;
+        this.sampleSize = sampleSize;
+    }
+
+    public void write(Document document) throws IOException {
+        if (writer == null) {
+            if (sample == null) {
+                sample = new DocumentSpillBuffer(SAMPLE_MEMORY_THRESHOLD);
+            }
+            sample.add(document);
+            BsonRecordConverter.mergeFields(sampledFields, document);
+            if (sample.size() >= sampleSize) {
+                closeSample();
+            }
+        } else {
+            writeRecord(document);
+        }
+        count++;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the encoded size of the documents held back until the schema is known.
+     */
+    long getSampledBytes() {
+        return sample != null ? sample.getBytes() : 0;
+    }
+
+    /**
+     * Fixes the schema from the documents sampled so far and writes them out.
+     */
+    void closeSample() throws IOException {
+        try {
+            schema = factory.getSchema(variables, BsonRecordConverter.toSchema(sampledFields, projectedFields));
+            writer = factory.createWriter(logger, schema, new NonCloseableOutputStream(out));
+        } catch (SchemaNotFoundException e) {
+            throw new ProcessException("Failed to resolve the record schema", e);
+        }
+        writer.beginRecordSet();
+        if (sample != null) {
+            try {
+                for (Iterator<Document> documents = sample.iterator(); documents.hasNext(); ) {
+                    writeRecord(documents.next());
+                }
+            } finally {
+                sample.close();
+                sample = null;
+            }
+        }
+    }
+
+    private void writeRecord(Document document) throws IOException {
+        Set<String> droppedHere = new TreeSet<>();
+        writer.write(BsonRecordConverter.toRecord(document, schema, droppedHere));
+        if (!droppedHere.isEmpty()) {
+            droppedCount++;
+            dropped.addAll(droppedHere);
+        }
+    }
+
+    /**
+     * Ends the record set and returns the attributes describing it: the writer's own attributes,
+     * record.count and the writer's mime.type. Returns no attributes when nothing was written.
+     */
+    public Map<String, String> finish() throws IOException {
+        Map<String, String> attributes = new HashMap<>();
+        if (writer == null && sample != null) {
+            closeSample();
+        }
+        if (writer != null) {
+            WriteResult result = writer.finishRecordSet();
+            attributes.putAll(result.getAttributes());
+            attributes.put("record.count", String.valueOf(result.getRecordCount()));
+            attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+        }
+        if (droppedCount > 0) {
+            logger.warn("{} of {} records had fields that do not fit the record schema and were left out: {}", new Object[]{droppedCount, count, dropped});
+        }
+        return attributes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+        } finally {
+            if (sample != null) {
+                sample.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package processors;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes every part directly into a new flow file of the session and transfers it.
+ */
+class SessionContentSink implements ContentSink {
+    private final ProcessSession session;
+    private final String transitUri;
+    private final Relationship relationship;
+
+    SessionContentSink(ProcessSession session, String transitUri, Relationship relationship) {
+        this.session = session;
+        this.transitUri = transitUri;
+        this.relationship = relationship;
+    }
+
+    @Override
+    public boolean emit(PartWriter writer, Map<String, String> attributes) {
+        final AtomicInteger written = new AtomicInteger();
+        FlowFile flowFile = session.create();
+        try {
+            flowFile = session.write(flowFile, out -> written.set(writer.write(out)));
+        } catch (RuntimeException e) {
+            // e.g. the cursor failing part way; the flow file must go, or the commit fails
+            session.remove(flowFile);
+            throw e;
+        }
+        if (written.get() == 0) {
+            session.remove(flowFile);
+            return false;
+        }
+        flowFile = session.putAllAttributes(flowFile, attributes);
+        session.getProvenanceReporter().receive(flowFile, transitUri);
+        session.transfer(flowFile, relationship);
+        return true;
+    }
+}
@@ -0,0 +1,76 @@
+package processors;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spools parts to temporary files so they can be produced off the session thread, which is the
+ * only thread allowed to touch the ProcessSession, and transferred later in a fixed order.
+ */
+class SpoolContentSink implements ContentSink {
+
+    private static final class Part {
+        private final File file;
+        private final Map<String, String> attributes;
+
+        private Part(File file, Map<String, String> attributes) {
+            this.file = file;
+            this.attributes = attributes;
+        }
+    }
+
+    private final List<Part> parts = new ArrayList<>();
+
+    @Override
+    public boolean emit(PartWriter writer, Map<String, String> attributes) throws IOException {
+        File file = File.createTempFile("mongo-export", ".part");
+        int written;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            written = writer.write(out);
+        } catch (IOException | RuntimeException e) {
+            file.delete();
+            throw e;
+        }
+        if (written == 0) {
+            file.delete();
+            return false;
+        }
+        parts.add(new Part(file, new HashMap<>(attributes)));
+        return true;
+    }
+
+    /**
+     * Imports the spooled parts into the session in the order they were emitted.
+     */
+    void transferTo(ProcessSession session, String transitUri, Relationship relationship) {
+        try {
+            for (Part part : parts) {
+                FlowFile flowFile = session.create();
+                flowFile = session.importFrom(part.file.toPath(), false, flowFile);
+                flowFile = session.putAllAttributes(flowFile, part.attributes);
+                session.getProvenanceReporter().receive(flowFile, transitUri);
+                session.transfer(flowFile, relationship);
+            }
+        } finally {
+            discard();
+        }
+    }
+
+    void discard() {
+        for (Part part : parts) {
+            part.file.delete();
+        }
+        parts.clear();
+    }
+}
@@ -0,0 +1,144 @@
+package processors;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.apache.nifi.processors.mongodb.ObjectIdSerializer;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Writes BSON documents as "Standard" JSON directly to a JsonGenerator.
+ * <p>
+ * The output is identical to what the Standard-configured ObjectMapper produced by reflective
+ * Map serialization: ObjectIds as hex strings and dates as ISO-8601 UTC strings. The common BSON
+ * value types are walked by hand; anything else is handed to that same mapper. Instances are
+ * immutable and meant to be created once and shared between threads.
+ */
+public class StandardJsonCodec {
+    private static final ThreadLocal<DateFormat> DATE_FORMAT = ThreadLocal.withInitial(() -> {
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return df;
+    });
+    // Between the Gregorian cutover (1582-10-15) and the end of year 9999 dates are formatted by
+    // hand, which gives exactly what SimpleDateFormat prints at a fraction of the cost.
+    private static final long FAST_DATE_MIN = -12219292800000L;
+    private static final long FAST_DATE_MAX = 253402300799999L;
+
+    private final ObjectMapper mapper;
+    private final ObjectWriter fallbackWriter;
+
+    public StandardJsonCodec() {
+        this.mapper = new ObjectMapper();
+        this.mapper.registerModule(ObjectIdSerializer.getModule());
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        this.mapper.setDateFormat(df);
+        this.mapper.setTimeZone(TimeZone.getTimeZone("UTC"));
+        this.mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        this.fallbackWriter = this.mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    public JsonGenerator createGenerator(OutputStream out) throws IOException {
+        return mapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+    }
+
+    public void write(JsonGenerator generator, Map<String, ?> document) throws IOException {
+        writeMap(generator, document);
+    }
+
+    /**
+     * Renders a single value as compact JSON, e.g. a nested document placed in a CSV cell.
+     */
+    public String toJson(Object value) throws IOException {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(writer)) {
+            writeValue(generator, value);
+        }
+        return writer.toString();
+    }
+
+    private void writeMap(JsonGenerator generator, Map<?, ?> map) throws IOException {
+        generator.writeStartObject();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            generator.writeFieldName(String.valueOf(entry.getKey()));
+            writeValue(generator, entry.getValue());
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeDate(JsonGenerator generator, Date date) throws IOException {
+        long millis = date.getTime();
+        if (millis < FAST_DATE_MIN || millis > FAST_DATE_MAX) {
+            generator.writeString(DATE_FORMAT.get().format(date));
+            return;
+        }
+        LocalDateTime time = LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000L), 0, ZoneOffset.UTC);
+        char[] chars = new char[24];
+        digits(chars, 0, time.getYear(), 4);
+        chars[4] = '-';
+        digits(chars, 5, time.getMonthValue(), 2);
+        chars[7] = '-';
+        digits(chars, 8, time.getDayOfMonth(), 2);
+        chars[10] = 'T';
+        digits(chars, 11, time.getHour(), 2);
+        chars[13] = ':';
+        digits(chars, 14, time.getMinute(), 2);
+        chars[16] = ':';
+        digits(chars, 17, time.getSecond(), 2);
+        chars[19] = '.';
+        digits(chars, 20, (int) Math.floorMod(millis, 1000L), 3);
+        chars[23] = 'Z';
+        generator.writeString(chars, 0, chars.length);
+    }
+
+    private static void digits(char[] chars, int offset, int value, int width) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private void writeValue(JsonGenerator generator, Object value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+        } else if (value instanceof String) {
+            generator.writeString((String) value);
+        } else if (value instanceof Integer) {
+            generator.writeNumber((Integer) value);
+        } else if (value instanceof Long) {
+            generator.writeNumber((Long) value);
+        } else if (value instanceof Double) {
+            generator.writeNumber((Double) value);
+        } else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        } else if (value instanceof ObjectId) {
+            generator.writeString(value.toString());
+        } else if (value.getClass() == Date.class) {
+            writeDate(generator, (Date) value);
+        } else if (value instanceof Map) {
+            writeMap(generator, (Map<?, ?>) value);
+        } else if (value instanceof List) {
+            generator.writeStartArray();
+            for (Object item : (List<?>) value) {
+                writeValue(generator, item);
+            }
+            generator.writeEndArray();
+        } else {
+            fallbackWriter.writeValue(generator, value);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package processors;
+
+import com.mongodb.CursorType;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.processors.mongodb.AbstractMongoProcessor;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.types.BSONTimestamp;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+@Tags({"mongodb", "read", "tail", "oplog", "cdp"})
+@InputRequirement(Requirement.INPUT_FORBIDDEN)
+@TriggerSerially
+@Stateful(scopes = Scope.CLUSTER, description = "Stores the ts of the last oplog entry, or the _id of the last capped collection document, that was committed, "
+        + "so tailing resumes after it on restart.")
+@CapabilityDescription("Tails MongoDB with a tailable await cursor and emits documents as they are written, as JSON arrays batched by count or time. "
+        + "From the replica-set oplog (local.oplog.rs) it emits the inserts and updates of the configured Database.Collection; from a capped "
+        + "collection it emits the new documents. Tailing the oplog requires a replica set, a single-node one is enough. Run on the primary node only.")
+public class TailMongo extends AbstractMongoProcessor {
+    static final Relationship REL_SUCCESS = (new Relationship.Builder()).name("success").description("All files are routed to success").build();
+
+    static final String SOURCE_OPLOG = "oplog";
+    static final String SOURCE_CAPPED = "capped";
+    static final String START_NOW = "now";
+    static final String START_BEGINNING = "beginning";
+    static final String TS_STATE = "ts";
+    static final String LAST_ID_STATE = "last.id";
+
+    static final PropertyDescriptor TAIL_SOURCE;
+    static final PropertyDescriptor START_AT;
+    static final PropertyDescriptor MAX_BATCH_SIZE;
+    static final PropertyDescriptor MAX_BATCH_WAIT;
+
+    private static final Set<Relationship> relationships;
+    private static final List<PropertyDescriptor> propertyDescriptors;
+    private volatile StandardJsonCodec codec;
+    private volatile MongoCursor<Document> cursor;
+    // the _id of the capped collection document the cursor is skipped through, if not reached yet
+    private volatile Object resumeAfter;
+
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return propertyDescriptors;
+    }
+
+    @OnScheduled
+    public void createCodec() {
+        this.codec = new StandardJsonCodec();
+    }
+
+    @OnStopped
+    public void closeCursor() {
+        MongoCursor<Document> cursor = this.cursor;
+        if (cursor != null) {
+            cursor.close();
+            this.cursor = null;
+        }
+    }
+
+    /**
+     * Reads an oplog ts, which the driver decodes as a BsonTimestamp, or as the legacy
+     * BSONTimestamp through a DBObject-style codec registry.
+     */
+    static BsonTimestamp toTimestamp(Object ts) {
+        if (ts instanceof BSONTimestamp) {
+            return new BsonTimestamp(((BSONTimestamp) ts).getTime(), ((BSONTimestamp) ts).getInc());
+        }
+        return (BsonTimestamp) ts;
+    }
+
+    static String formatTimestamp(BsonTimestamp ts) {
+        return ts.getTime() + ":" + ts.getInc();
+    }
+
+    static BsonTimestamp parseTimestamp(String value) {
+        int separator = value.indexOf(':');
+        return new BsonTimestamp(Integer.parseInt(value.substring(0, separator)), Integer.parseInt(value.substring(separator + 1)));
+    }
+
+    /**
+     * Reduces an oplog entry to the event that is emitted, with ts written as "time:inc" so that
+     * both JSON types can render it.
+     */
+    static Document toEvent(Document entry) {
+        Document event = new Document("ts", formatTimestamp(toTimestamp(entry.get("ts"))))
+                .append("op", entry.get("op"))
+                .append("ns", entry.get("ns"))
+                .append("o", entry.get("o"));
+        if (entry.containsKey("o2")) {
+            event.append("o2", entry.get("o2"));
+        }
+        return event;
+    }
+
+    /**
+     * Selects the insert and update entries of the namespace after the given ts, or all of them
+     * when there is none. The query always holds a ts condition, which the server requires of an
+     * oplogReplay query.
+     */
+    static Document oplogQuery(String ns, BsonTimestamp after) {
+        return new Document("ns", ns)
+                .append("op", new Document("$in", Arrays.asList("i", "u")))
+                .append("ts", after != null ? new Document("$gt", after) : new Document("$gte", new BsonTimestamp(0, 0)));
+    }
+
+    /**
+     * Opens the tailable cursor after the stored position, or at Start At when there is none. A
+     * capped collection is read in natural (insertion) order from its start and the documents up
+     * to the stored _id are skipped, since ids written by several clients need not increase; when
+     * that document has been overwritten since, tailing restarts at the oldest document left.
+     */
+    private MongoCursor<Document> openCursor(ProcessContext context, Map<String, String> state) {
+        boolean oplog = SOURCE_OPLOG.equals(context.getProperty(TAIL_SOURCE).getValue());
+        boolean fromNow = START_NOW.equals(context.getProperty(START_AT).getValue());
+        MongoCollection<Document> source = oplog ? this.mongoClient.getDatabase("local").getCollection("oplog.rs") : this.getCollection(context);
+        Document query;
+        if (oplog) {
+            String ns = context.getProperty(DATABASE_NAME).evaluateAttributeExpressions().getValue() + "." + context.getProperty(COLLECTION_NAME).evaluateAttributeExpressions().getValue();
+            BsonTimestamp after = null;
+            if (state.containsKey(TS_STATE)) {
+                after = parseTimestamp(state.get(TS_STATE));
+            } else if (fromNow) {
+                Document last = source.find().sort(new Document("$natural", -1)).limit(1).first();
+                if (last != null) {
+                    after = toTimestamp(last.get("ts"));
+                }
+            }
+            query = oplogQuery(ns, after);
+        } else {
+            query = new Document();
+            Object after = null;
+            if (state.containsKey(LAST_ID_STATE)) {
+                after = Document.parse(state.get(LAST_ID_STATE)).get("_id");
+                if (source.count(new Document("_id", after)) == 0) {
+                    this.getLogger().warn("Capped collection document {} was overwritten before it was resumed after; documents may have been missed", new Object[]{after});
+                    after = null;
+                }
+            } else if (fromNow) {
+                Document last = source.find().sort(new Document("$natural", -1)).limit(1).projection(new Document("_id", 1)).first();
+                after = last != null ? last.get("_id") : null;
+            }
+            this.resumeAfter = after;
+        }
+        FindIterable<Document> it = source.find(query).cursorType(CursorType.TailableAwait).noCursorTimeout(true)
+                .maxAwaitTime(context.getProperty(MAX_BATCH_WAIT).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        if (oplog) {
+            it.oplogReplay(true);
+        }
+        return it.iterator();
+    }
+
+    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+        ComponentLog logger = this.getLogger();
+        final boolean oplog = SOURCE_OPLOG.equals(context.getProperty(TAIL_SOURCE).getValue());
+        final int maxBatchSize = context.getProperty(MAX_BATCH_SIZE).asInteger();
+        final long deadline = System.nanoTime() + context.getProperty(MAX_BATCH_WAIT).asTimePeriod(TimeUnit.NANOSECONDS);
+        final String jsonTypeSetting = context.getProperty(JsonProcessor.JSON_TYPE).getValue();
+        final boolean prettyPrint = context.getProperty(JsonProcessor.PRETTY_PRINT).asBoolean();
+        StateManager stateManager = context.getStateManager();
+        try {
+            Map<String, String> state = stateManager.getState(Scope.CLUSTER).toMap();
+            if (this.cursor == null) {
+                this.cursor = this.openCursor(context, state);
+            }
+            final MongoCursor<Document> cursor = this.cursor;
+            final Document[] last = new Document[1];
+            final boolean[] dead = new boolean[1];
+            Map<String, String> attributes = new HashMap<>();
+            attributes.put(CoreAttributes.MIME_TYPE.key(), "application/json");
+            boolean emitted = new SessionContentSink(session, this.getURI(context), REL_SUCCESS).emit(out -> {
+                try (JsonBatchWriter writer = new JsonBatchWriter(out, this.codec, jsonTypeSetting, prettyPrint)) {
+                    writer.writeStartArray();
+                    while (writer.getCount() < maxBatchSize && System.nanoTime() < deadline) {
+                        // takes the next document of the current batch, or sends one getMore,
+                        // which the server holds for up to Max Batch Wait when nothing is new
+                        Document document = cursor.tryNext();
+                        if (document == null) {
+                            dead[0] = cursor.getServerCursor() == null;
+                            break;
+                        }
+                        if (this.resumeAfter != null) {
+                            if (this.resumeAfter.equals(document.get("_id"))) {
+                                this.resumeAfter = null;
+                            }
+                            continue;
+                        }
+                        writer.write(oplog ? toEvent(document) : document);
+                        last[0] = document;
+                    }
+                    writer.writeEndArray();
+                    return writer.getCount();
+                }
+            }, attributes);
+
+            if (emitted) {
+                session.commit();
+                Map<String, String> newState = new HashMap<>(state);
+                if (oplog) {
+                    newState.put(TS_STATE, formatTimestamp(toTimestamp(last[0].get("ts"))));
+                } else {
+                    newState.put(LAST_ID_STATE, new Document("_id", last[0].get("_id")).toJson());
+                }
+                stateManager.setState(newState, Scope.CLUSTER);
+            }
+            if (dead[0]) {
+                // The server dropped the cursor, e.g. a capped collection that was empty when it
+                // was opened; start again from the stored position on the next trigger.
+                this.closeCursor();
+            }
+            if (!emitted) {
+                context.yield();
+            }
+        } catch (RuntimeException | IOException e) {
+            this.closeCursor();
+            context.yield();
+            session.rollback();
+            logger.error("Failed to tail {} due to {}", new Object[]{context.getProperty(COLLECTION_NAME).getValue(), e}, e);
+        }
+    }
+
+    static {
+        TAIL_SOURCE = (new PropertyDescriptor.Builder()).name("tail-source").displayName("Tail Source").description("What to tail: the replica-set oplog filtered on Database.Collection, or the collection itself, which must then be capped. A capped collection resumes in insertion order after the last committed document, so its _ids need not increase; if that document has been overwritten in the meantime, tailing restarts at the oldest document left.").allowableValues(new AllowableValue[]{new AllowableValue(SOURCE_OPLOG, "Oplog", "Tail local.oplog.rs and emit the insert and update entries of Database.Collection"), new AllowableValue(SOURCE_CAPPED, "Capped Collection", "Tail the capped collection and emit the documents inserted into it")}).defaultValue(SOURCE_OPLOG).expressionLanguageSupported(false).required(true).build();
+        START_AT = (new PropertyDescriptor.Builder()).name("start-at").displayName("Start At").description("Where tailing starts when no position is stored in state yet. Clear the processor state to start over.").allowableValues(new AllowableValue[]{new AllowableValue(START_NOW, "Now", "Only emit what is written after tailing starts"), new AllowableValue(START_BEGINNING, "Beginning", "Emit everything still in the oplog or capped collection")}).defaultValue(START_NOW).expressionLanguageSupported(false).required(true).build();
+        MAX_BATCH_SIZE = (new PropertyDescriptor.Builder()).name("max-batch-size").displayName("Max Batch Size").description("The maximum number of documents in one flow file.").required(true).expressionLanguageSupported(false).addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).defaultValue("1000").build();
+        MAX_BATCH_WAIT = (new PropertyDescriptor.Builder()).name("max-batch-wait").displayName("Max Batch Wait").description("How long a trigger waits for more documents before emitting a batch that is not full yet. The wait is spent in the server's await on the tailable cursor; a trigger that receives nothing yields.").required(true).expressionLanguageSupported(false).addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).defaultValue("1 sec").build();
+
+        List<PropertyDescriptor> _propertyDescriptors = new ArrayList<>();
+        _propertyDescriptors.add(URI);
+        _propertyDescriptors.add(DATABASE_NAME);
+        _propertyDescriptors.add(COLLECTION_NAME);
+        _propertyDescriptors.add(SSL_CONTEXT_SERVICE);
+        _propertyDescriptors.add(CLIENT_AUTH);
+        _propertyDescriptors.add(TAIL_SOURCE);
+        _propertyDescriptors.add(START_AT);
+        _propertyDescriptors.add(MAX_BATCH_SIZE);
+        _propertyDescriptors.add(MAX_BATCH_WAIT);
+        _propertyDescriptors.add(JsonProcessor.JSON_TYPE);
+        _propertyDescriptors.add(JsonProcessor.PRETTY_PRINT);
+        propertyDescriptors = Collections.unmodifiableList(_propertyDescriptors);
+
+        Set<Relationship> _relationships = new HashSet<>();
+        _relationships.add(REL_SUCCESS);
+        relationships = Collections.unmodifiableSet(_relationships);
+    }
+}
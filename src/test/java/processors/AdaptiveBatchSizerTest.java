@@ -0,0 +1,38 @@
+package processors;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveBatchSizerTest {
+
+    @Test
+    public void sizesBatchesToTheTargetBytes() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100_000, 0, 10, 10_000, 101);
+
+        // 1000 documents of 200 bytes in 10 round trips of 1 second each
+        sizer.record(1000, 200_000, TimeUnit.SECONDS.toNanos(10), 100);
+
+        assertEquals(500, sizer.getBatchSize());
+    }
+
+    @Test
+    public void shrinksBatchesWhoseRoundTripsAreTooSlow() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100_000, TimeUnit.MILLISECONDS.toNanos(250), 10, 10_000, 101);
+
+        sizer.record(1000, 200_000, TimeUnit.SECONDS.toNanos(10), 100);
+
+        assertEquals(25, sizer.getBatchSize());
+    }
+
+    @Test
+    public void keepsWithinTheMinimum() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100_000, TimeUnit.MILLISECONDS.toNanos(1), 10, 10_000, 101);
+
+        sizer.record(1000, 200_000, TimeUnit.SECONDS.toNanos(10), 100);
+
+        assertEquals(10, sizer.getBatchSize());
+    }
+}
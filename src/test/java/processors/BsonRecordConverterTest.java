@@ -0,0 +1,114 @@
+package processors;
+
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.type.ChoiceDataType;
+import org.apache.nifi.serialization.record.type.RecordDataType;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BsonRecordConverterTest {
+
+    private static DataType typeOf(RecordSchema schema, String field) {
+        return schema.getField(field).get().getDataType();
+    }
+
+    @Test
+    public void keepsFieldsTheFirstDocumentLacks() {
+        RecordSchema schema = BsonRecordConverter.inferSchema(Arrays.asList(
+                new Document("a", 1),
+                new Document("b", "x"),
+                new Document("a", 2).append("c", true)), null);
+
+        assertEquals(Arrays.asList("a", "b", "c"), schema.getFieldNames());
+        assertEquals(RecordFieldType.INT, typeOf(schema, "a").getFieldType());
+        assertEquals(RecordFieldType.STRING, typeOf(schema, "b").getFieldType());
+        assertEquals(RecordFieldType.BOOLEAN, typeOf(schema, "c").getFieldType());
+
+        Set<String> dropped = new HashSet<>();
+        Record record = BsonRecordConverter.toRecord(new Document("b", "y").append("c", false), schema, dropped);
+        assertEquals("y", record.getValue("b"));
+        assertEquals(false, record.getValue("c"));
+        assertTrue(dropped.isEmpty());
+    }
+
+    @Test
+    public void widensNumbers() {
+        RecordSchema schema = BsonRecordConverter.inferSchema(Arrays.asList(
+                new Document("n", 1),
+                new Document("n", 2L),
+                new Document("n", 1.5)), null);
+
+        assertEquals(RecordFieldType.DOUBLE, typeOf(schema, "n").getFieldType());
+        Record record = BsonRecordConverter.toRecord(new Document("n", 3), schema, new HashSet<>());
+        assertEquals(3.0, record.getValue("n"));
+    }
+
+    @Test
+    public void conflictingTypesBecomeAChoice() {
+        RecordSchema schema = BsonRecordConverter.inferSchema(Arrays.asList(
+                new Document("v", 1),
+                new Document("v", "one"),
+                new Document("v", 2L)), null);
+
+        DataType type = typeOf(schema, "v");
+        assertEquals(RecordFieldType.CHOICE, type.getFieldType());
+        assertEquals(Arrays.asList(RecordFieldType.LONG.getDataType(), RecordFieldType.STRING.getDataType()), ((ChoiceDataType) type).getPossibleSubTypes());
+
+        Set<String> dropped = new HashSet<>();
+        assertEquals(7L, BsonRecordConverter.toRecord(new Document("v", 7), schema, dropped).getValue("v"));
+        assertEquals("seven", BsonRecordConverter.toRecord(new Document("v", "seven"), schema, dropped).getValue("v"));
+        assertEquals("true", BsonRecordConverter.toRecord(new Document("v", true), schema, dropped).getValue("v"));
+        assertTrue(dropped.isEmpty());
+    }
+
+    @Test
+    public void takesTheTypeOfALaterValueWhenTheFirstIsNull() {
+        RecordSchema schema = BsonRecordConverter.inferSchema(Arrays.asList(
+                new Document("n", null).append("never", null),
+                new Document("n", 5).append("never", null)), null);
+
+        assertEquals(RecordFieldType.INT, typeOf(schema, "n").getFieldType());
+        assertEquals(RecordFieldType.STRING, typeOf(schema, "never").getFieldType());
+    }
+
+    @Test
+    public void mergesNestedDocumentsAndArrays() {
+        RecordSchema schema = BsonRecordConverter.inferSchema(Arrays.asList(
+                new Document("d", new Document("x", 1)).append("tags", Collections.emptyList()),
+                new Document("d", new Document("y", "a")).append("tags", Arrays.asList(1, 2)),
+                new Document("d", new Document("x", 2L)).append("tags", Arrays.asList(3L))), null);
+
+        RecordSchema child = ((RecordDataType) typeOf(schema, "d")).getChildSchema();
+        assertEquals(Arrays.asList("x", "y"), child.getFieldNames());
+        assertEquals(RecordFieldType.LONG, typeOf(child, "x").getFieldType());
+        assertEquals(RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.LONG.getDataType()), typeOf(schema, "tags"));
+
+        Record record = BsonRecordConverter.toRecord(new Document("d", new Document("x", 4).append("y", "b")), schema, new HashSet<>());
+        Record nested = (Record) record.getValue("d");
+        assertEquals(4L, nested.getValue("x"));
+        assertEquals("b", nested.getValue("y"));
+    }
+
+    @Test
+    public void reportsFieldsTheSchemaCannotHold() {
+        RecordSchema schema = BsonRecordConverter.inferSchema(Collections.singletonList(
+                new Document("a", 1).append("d", new Document("x", 1))), null);
+
+        Set<String> dropped = new HashSet<>();
+        Record record = BsonRecordConverter.toRecord(new Document("a", "text").append("b", 2).append("d", new Document("x", 2).append("z", 3)), schema, dropped);
+
+        assertEquals(null, record.getValue("a"));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "d.z")), dropped);
+    }
+}
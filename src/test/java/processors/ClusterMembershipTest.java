@@ -0,0 +1,183 @@
+package processors;
+
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
+import org.apache.nifi.components.state.StateMap;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClusterMembershipTest {
+    private static final String RUN = "scan";
+    private static final String SIGNATURE = "db.collection/";
+    private static final long EXPIRATION = 60000;
+
+    /**
+     * Behaves like the ZooKeeper provider: state that was never set has version -1 and cannot be
+     * replaced.
+     */
+    static final class ZooKeeperLikeStateManager implements StateManager {
+        private Map<String, String> values = Collections.emptyMap();
+        private long version = -1;
+
+        @Override
+        public synchronized void setState(Map<String, String> state, Scope scope) {
+            values = new HashMap<>(state);
+            version++;
+        }
+
+        @Override
+        public synchronized StateMap getState(Scope scope) {
+            final Map<String, String> snapshot = values;
+            final long snapshotVersion = version;
+            return new StateMap() {
+                @Override
+                public long getVersion() {
+                    return snapshotVersion;
+                }
+
+                @Override
+                public String get(String key) {
+                    return snapshot.get(key);
+                }
+
+                @Override
+                public Map<String, String> toMap() {
+                    return snapshot;
+                }
+            };
+        }
+
+        @Override
+        public synchronized boolean replace(StateMap oldValue, Map<String, String> newValue, Scope scope) {
+            if (version == -1 || oldValue.getVersion() != version) {
+                return false;
+            }
+            setState(newValue, scope);
+            return true;
+        }
+
+        @Override
+        public synchronized void clear(Scope scope) {
+            setState(Collections.emptyMap(), scope);
+        }
+    }
+
+    @Test
+    public void updateSetsStateThatWasNeverSet() throws Exception {
+        StateManager stateManager = new ZooKeeperLikeStateManager();
+
+        ClusterMembership.update(stateManager, current -> {
+            current.put("a", "1");
+            return current;
+        });
+        ClusterMembership.update(stateManager, current -> {
+            current.put("b", "2");
+            return current;
+        });
+
+        Map<String, String> state = stateManager.getState(Scope.CLUSTER).toMap();
+        assertEquals("1", state.get("a"));
+        assertEquals("2", state.get("b"));
+        assertEquals(1, stateManager.getState(Scope.CLUSTER).getVersion());
+    }
+
+    @Test
+    public void registerStartsFromEmptyClusterState() throws Exception {
+        StateManager stateManager = new ZooKeeperLikeStateManager();
+
+        ClusterMembership.register(stateManager, "node-a", 60000);
+        ClusterMembership.register(stateManager, "node-b", 60000);
+
+        Map<String, String> state = stateManager.getState(Scope.CLUSTER).toMap();
+        assertTrue(state.containsKey(ClusterMembership.MEMBER_STATE_PREFIX + "node-a"));
+        assertTrue(state.containsKey(ClusterMembership.MEMBER_STATE_PREFIX + "node-b"));
+    }
+
+    @Test
+    public void nodesClaimDisjointSharesCoveringEveryUnit() throws Exception {
+        StateManager stateManager = startedRun("node-a", "node-b", "node-c");
+
+        List<Integer> a = ClusterMembership.claim(stateManager, RUN, SIGNATURE, "node-a", 10, EXPIRATION);
+        List<Integer> b = ClusterMembership.claim(stateManager, RUN, SIGNATURE, "node-b", 10, EXPIRATION);
+        List<Integer> c = ClusterMembership.claim(stateManager, RUN, SIGNATURE, "node-c", 10, EXPIRATION);
+
+        assertEquals(Arrays.asList(0, 1, 2, 3), a);
+        assertEquals(Arrays.asList(4, 5, 6, 7), b);
+        assertEquals(Arrays.asList(8, 9), c);
+        assertEquals(a, ClusterMembership.claim(stateManager, RUN, SIGNATURE, "node-a", 10, EXPIRATION));
+    }
+
+    @Test
+    public void nodeJoiningLateOnlyGetsUnclaimedUnits() throws Exception {
+        StateManager stateManager = startedRun("node-a");
+        List<Integer> a = ClusterMembership.claim(stateManager, RUN, SIGNATURE, "node-a", 4, EXPIRATION);
+        ClusterMembership.register(stateManager, "node-b", EXPIRATION);
+
+        List<Integer> b = ClusterMembership.claim(stateManager, RUN, SIGNATURE, "node-b", 4, EXPIRATION);
+
+        assertEquals(Arrays.asList(0, 1, 2, 3), a);
+        assertTrue(b.isEmpty());
+    }
+
+    @Test
+    public void claimsOfExpiredMembersAreTakenOver() throws Exception {
+        StateManager stateManager = startedRun("node-a", "node-b");
+        ClusterMembership.claim(stateManager, RUN, SIGNATURE, "node-a", 4, EXPIRATION);
+        ClusterMembership.update(stateManager, current -> {
+            current.put(ClusterMembership.MEMBER_STATE_PREFIX + "node-a", "0");
+            return current;
+        });
+
+        assertEquals(Arrays.asList(0, 1, 2, 3), ClusterMembership.claim(stateManager, RUN, SIGNATURE, "node-b", 4, EXPIRATION));
+    }
+
+    @Test
+    public void failedUnitsAreReleasedAndTheRunEndsWhenAllAreDone() throws Exception {
+        StateManager stateManager = startedRun("node-a", "node-b");
+        ClusterMembership.claim(stateManager, RUN, SIGNATURE, "node-a", 4, EXPIRATION);
+        ClusterMembership.claim(stateManager, RUN, SIGNATURE, "node-b", 4, EXPIRATION);
+
+        ClusterMembership.complete(stateManager, RUN, SIGNATURE, "node-a", Collections.singleton(0), Collections.singleton(1), 4);
+        ClusterMembership.complete(stateManager, RUN, SIGNATURE, "node-b", Arrays.asList(2, 3), Collections.emptySet(), 4);
+        Set<Integer> done = ClusterMembership.doneUnits(stateManager.getState(Scope.CLUSTER).toMap(), RUN);
+        assertEquals(new TreeSet<>(Arrays.asList(0, 2, 3)), done);
+        assertEquals(Collections.singletonList(1), ClusterMembership.claim(stateManager, RUN, SIGNATURE, "node-b", 4, EXPIRATION));
+
+        ClusterMembership.complete(stateManager, RUN, SIGNATURE, "node-b", Collections.singleton(1), Collections.emptySet(), 4);
+        Map<String, String> state = stateManager.getState(Scope.CLUSTER).toMap();
+        assertFalse(state.containsKey(RUN + ClusterMembership.SIGNATURE_SUFFIX));
+        assertTrue(ClusterMembership.claim(stateManager, RUN, SIGNATURE, "node-a", 4, EXPIRATION).isEmpty());
+    }
+
+    @Test
+    public void runIsPlannedOnlyByTheNodeStartingIt() throws Exception {
+        StateManager stateManager = new ZooKeeperLikeStateManager();
+
+        ClusterMembership.startRun(stateManager, RUN, SIGNATURE, () -> Collections.singletonMap(RUN + ".plan", "first"));
+        Map<String, String> state = ClusterMembership.startRun(stateManager, RUN, SIGNATURE, () -> {
+            throw new AssertionError("the run is already planned");
+        });
+
+        assertEquals("first", state.get(RUN + ".plan"));
+    }
+
+    private static StateManager startedRun(String... nodes) throws Exception {
+        StateManager stateManager = new ZooKeeperLikeStateManager();
+        for (String node : nodes) {
+            ClusterMembership.register(stateManager, node, EXPIRATION);
+        }
+        ClusterMembership.startRun(stateManager, RUN, SIGNATURE, Collections::emptyMap);
+        return stateManager;
+    }
+}
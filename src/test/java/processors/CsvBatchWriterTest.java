@@ -0,0 +1,57 @@
+package processors;
+
+import org.bson.Document;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CsvBatchWriterTest {
+
+    @Test
+    public void countsFieldsMissingFromTheSampledHeader() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CsvBatchWriter writer = new CsvBatchWriter(out, new StandardJsonCodec(), null, 2);
+        writer.write(new Document("a", 1));
+        writer.write(new Document("b", "x"));
+        writer.write(new Document("a", 2).append("c", true));
+        writer.write(new Document("b", "y").append("d", 3).append("c", false));
+        writer.close();
+
+        assertEquals(2, writer.getDroppedCount());
+        assertEquals(Arrays.asList("c", "d"), Arrays.asList(writer.getDroppedFields().toArray()));
+        assertEquals("a,b\n1,\n,x\n2,\n,y\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void closesTheSampleEarly() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CsvBatchWriter writer = new CsvBatchWriter(out, new StandardJsonCodec(), null, 0);
+        writer.write(new Document("a", 1));
+        assertTrue(writer.getSampledBytes() > 0);
+        writer.closeSample();
+        assertEquals(0, writer.getSampledBytes());
+        writer.write(new Document("a", 2).append("b", 3));
+        writer.close();
+
+        assertEquals(1, writer.getDroppedCount());
+        assertEquals("a\n1\n2\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void projectedHeaderReportsNoDrops() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CsvBatchWriter writer = new CsvBatchWriter(out, new StandardJsonCodec(), Collections.singletonList("a"), 100);
+        writer.write(new Document("a", "x,y"));
+        writer.close();
+
+        assertEquals(0, writer.getDroppedCount());
+        assertEquals("a\n\"x,y\"\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,169 @@
+package processors;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MappingMongoTest {
+
+    /**
+     * Fails every lookup, as an unreachable server would, without waiting for it.
+     */
+    public static class UnreachableMappingMongo extends MappingMongo {
+        @Override
+        @SuppressWarnings("unchecked")
+        protected MongoCollection<Document> getCollection(ProcessContext context) {
+            return (MongoCollection<Document>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{MongoCollection.class}, (proxy, method, args) -> {
+                throw new MongoException("server unreachable");
+            });
+        }
+    }
+
+    /**
+     * Fails the lookups of the key "bad" and finds nothing for any other key.
+     */
+    public static class PartlyFailingMappingMongo extends MappingMongo {
+        @Override
+        @SuppressWarnings("unchecked")
+        protected MongoCollection<Document> getCollection(ProcessContext context) {
+            return (MongoCollection<Document>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{MongoCollection.class}, (proxy, method, args) -> {
+                if (!method.getName().equals("find") || args.length != 1) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                if (((Document) args[0]).toJson().contains("\"bad\"")) {
+                    throw new MongoException("lookup failed");
+                }
+                return emptyFind();
+            });
+        }
+
+        private static Object emptyFind() {
+            MongoCursor<?> cursor = (MongoCursor<?>) Proxy.newProxyInstance(MongoCursor.class.getClassLoader(), new Class<?>[]{MongoCursor.class},
+                    (proxy, method, args) -> method.getName().equals("hasNext") ? Boolean.FALSE : null);
+            return Proxy.newProxyInstance(FindIterable.class.getClassLoader(), new Class<?>[]{FindIterable.class},
+                    (proxy, method, args) -> method.getName().equals("iterator") ? cursor : proxy);
+        }
+    }
+
+    @Test
+    public void idOnlyProjectionIsAnInclusion() {
+        Document projection = MappingMongo.lookupProjection(Document.parse("{\"_id\": 1}"), "customerId");
+
+        assertEquals(Document.parse("{\"_id\": 1, \"customerId\": 1}"), projection);
+    }
+
+    @Test
+    public void inclusionGetsTheMappingField() {
+        assertEquals(Document.parse("{\"_id\": 0, \"name\": 1, \"customerId\": 1}"),
+                MappingMongo.lookupProjection(Document.parse("{\"_id\": 0, \"name\": 1}"), "customerId"));
+        assertEquals(Document.parse("{\"customer\": 1}"),
+                MappingMongo.lookupProjection(Document.parse("{\"customer\": 1}"), "customer.id"));
+    }
+
+    @Test
+    public void exclusionKeepsTheMappingField() {
+        assertEquals(Document.parse("{\"_id\": 0}"), MappingMongo.lookupProjection(Document.parse("{\"_id\": 0}"), "customerId"));
+        assertEquals(Document.parse("{\"name\": 0}"), MappingMongo.lookupProjection(Document.parse("{\"name\": 0, \"customerId\": 0}"), "customerId"));
+        assertNull(MappingMongo.lookupProjection(null, "customerId"));
+    }
+
+    @Test
+    public void failedLookupRoutesTheFlowFileToFail() {
+        TestRunner runner = TestRunners.newTestRunner(UnreachableMappingMongo.class);
+        runner.setProperty("Mongo URI", "mongodb://localhost:27017");
+        runner.setProperty("Mongo Database Name", "test");
+        runner.setProperty("Mongo Collection Name", "customers");
+        runner.setProperty("Field mapping from", "customerId");
+        runner.setProperty("Field mapping to", "customerId");
+        runner.setProperty("Replace key", "false");
+        String records = "[{\"customerId\":\"a\"}]";
+        runner.enqueue(records.getBytes(StandardCharsets.UTF_8));
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(MappingMongo.FAILURE, 1);
+        MockFlowFile flowFile = runner.getFlowFilesForRelationship(MappingMongo.FAILURE).get(0);
+        flowFile.assertContentEquals(records);
+    }
+
+    @Test
+    public void preloadWaitsForTheFirstTriggerAndKeepsItsFlowFileOnFailure() {
+        TestRunner runner = TestRunners.newTestRunner(UnreachableMappingMongo.class);
+        runner.setProperty("Mongo URI", "mongodb://localhost:27017");
+        runner.setProperty("Mongo Database Name", "test");
+        runner.setProperty("Mongo Collection Name", "customers");
+        runner.setProperty("Field mapping from", "customerId");
+        runner.setProperty("Field mapping to", "customerId");
+        runner.setProperty("Replace key", "false");
+        runner.setProperty(MappingMongo.LOOKUP_STRATEGY, MappingMongo.LOOKUP_STRATEGY_PRELOAD);
+
+        // scheduling alone does not read the collection
+        runner.run();
+
+        runner.enqueue("[{\"customerId\":\"a\"}]".getBytes(StandardCharsets.UTF_8));
+        runner.run();
+
+        runner.assertTransferCount(MappingMongo.SUCCESS, 0);
+        runner.assertTransferCount(MappingMongo.FAILURE, 0);
+        runner.assertQueueNotEmpty();
+    }
+
+    @Test
+    public void onlyTheRecordsOfAFailedBatchGoToFail() {
+        for (String mode : new String[]{MappingMongo.PROCESSING_MODE_IN_MEMORY, MappingMongo.PROCESSING_MODE_STREAMING}) {
+            TestRunner runner = TestRunners.newTestRunner(PartlyFailingMappingMongo.class);
+            runner.setProperty("Mongo URI", "mongodb://localhost:27017");
+            runner.setProperty("Mongo Database Name", "test");
+            runner.setProperty("Mongo Collection Name", "customers");
+            runner.setProperty("Field mapping from", "customerId");
+            runner.setProperty("Field mapping to", "customerId");
+            runner.setProperty("Replace key", "false");
+            runner.setProperty(MappingMongo.LOOKUP_BATCH_SIZE, "1");
+            runner.setProperty(MappingMongo.LOOKUP_CONCURRENCY, "2");
+            runner.setProperty(MappingMongo.PROCESSING_MODE, mode);
+            runner.enqueue("[{\"customerId\":\"a\"},{\"customerId\":\"bad\"},{\"customerId\":\"c\"}]".getBytes(StandardCharsets.UTF_8));
+
+            runner.run();
+
+            runner.assertTransferCount(MappingMongo.SUCCESS, 1);
+            runner.assertTransferCount(MappingMongo.FAILURE, 1);
+            runner.getFlowFilesForRelationship(MappingMongo.SUCCESS).get(0).assertContentEquals("[{\"customerId\":\"a\"},{\"customerId\":\"c\"}]");
+            runner.getFlowFilesForRelationship(MappingMongo.FAILURE).get(0).assertContentEquals("[{\"customerId\":\"bad\"}]");
+        }
+    }
+
+    @Test
+    public void coalescedFlowFilesOnlyFailTheirFailedRecords() {
+        TestRunner runner = TestRunners.newTestRunner(PartlyFailingMappingMongo.class);
+        runner.setProperty("Mongo URI", "mongodb://localhost:27017");
+        runner.setProperty("Mongo Database Name", "test");
+        runner.setProperty("Mongo Collection Name", "customers");
+        runner.setProperty("Field mapping from", "customerId");
+        runner.setProperty("Field mapping to", "customerId");
+        runner.setProperty("Replace key", "false");
+        runner.setProperty(MappingMongo.LOOKUP_BATCH_SIZE, "1");
+        runner.setProperty(MappingMongo.LOOKUP_CONCURRENCY, "2");
+        runner.setProperty(MappingMongo.FLOWFILES_PER_TRIGGER, "2");
+        runner.enqueue("[{\"customerId\":\"a\"},{\"customerId\":\"bad\"}]".getBytes(StandardCharsets.UTF_8));
+        runner.enqueue("[{\"customerId\":\"c\"}]".getBytes(StandardCharsets.UTF_8));
+
+        runner.run();
+
+        runner.assertTransferCount(MappingMongo.SUCCESS, 2);
+        runner.assertTransferCount(MappingMongo.FAILURE, 1);
+        runner.getFlowFilesForRelationship(MappingMongo.FAILURE).get(0).assertContentEquals("[{\"customerId\":\"bad\"}]");
+    }
+}
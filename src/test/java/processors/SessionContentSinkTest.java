@@ -0,0 +1,43 @@
+package processors;
+
+import com.mongodb.MongoException;
+import org.apache.nifi.util.MockProcessSession;
+import org.apache.nifi.util.SharedSessionState;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SessionContentSinkTest {
+
+    @Test
+    public void failedPartIsRemovedSoTheRestCommits() throws Exception {
+        JsonProcessor processor = new JsonProcessor();
+        SharedSessionState state = new SharedSessionState(processor, new AtomicLong());
+        MockProcessSession session = new MockProcessSession(state, processor);
+        SessionContentSink sink = new SessionContentSink(session, "mongodb://localhost/test.items", JsonProcessor.REL_SUCCESS);
+
+        try {
+            sink.emit(out -> {
+                out.write('[');
+                throw new MongoException("cursor killed");
+            }, Collections.emptyMap());
+            fail();
+        } catch (MongoException expected) {
+            // the window fails on its own
+        }
+        sink.emit(out -> {
+            out.write("[{}]".getBytes(StandardCharsets.UTF_8));
+            return 1;
+        }, Collections.emptyMap());
+        session.commit();
+
+        session.assertAllFlowFilesTransferred(JsonProcessor.REL_SUCCESS, 1);
+        session.getFlowFilesForRelationship(JsonProcessor.REL_SUCCESS).get(0).assertContentEquals("[{}]");
+        assertEquals(1, session.getRemovedCount());
+    }
+}
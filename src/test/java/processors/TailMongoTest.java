@@ -0,0 +1,180 @@
+package processors;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.CreateCollectionOptions;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.types.BSONTimestamp;
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * The tests that tail a server need a replica set, a single-node one is enough, and only run
+ * when its URI is given, e.g. -Dmongo.replset.uri=mongodb://localhost:27017/?replicaSet=rs0.
+ */
+public class TailMongoTest {
+    private static final String DATABASE = "tail_mongo_test";
+
+    private String uri;
+    private MongoClient client;
+    private String collectionName;
+
+    @Before
+    public void setUp() {
+        uri = System.getProperty("mongo.replset.uri");
+        if (uri != null) {
+            client = new MongoClient(new MongoClientURI(uri));
+            collectionName = "events" + System.nanoTime();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (client != null) {
+            client.getDatabase(DATABASE).getCollection(collectionName).drop();
+            client.close();
+        }
+    }
+
+    @Test
+    public void oplogQueryWithoutPositionHasATsCondition() {
+        Document query = TailMongo.oplogQuery("db.coll", null);
+        assertEquals("db.coll", query.get("ns"));
+        assertEquals(new Document("$in", Arrays.asList("i", "u")), query.get("op"));
+        assertEquals(new Document("$gte", new BsonTimestamp(0, 0)), query.get("ts"));
+    }
+
+    @Test
+    public void oplogQueryStartsAfterThePosition() {
+        assertEquals(new Document("$gt", new BsonTimestamp(1500000000, 7)), TailMongo.oplogQuery("db.coll", new BsonTimestamp(1500000000, 7)).get("ts"));
+    }
+
+    @Test
+    public void timestampsRoundTripThroughState() {
+        BsonTimestamp ts = new BsonTimestamp(1500000000, 42);
+        assertEquals("1500000000:42", TailMongo.formatTimestamp(ts));
+        assertEquals(ts, TailMongo.parseTimestamp(TailMongo.formatTimestamp(ts)));
+        assertEquals(ts, TailMongo.toTimestamp(new BSONTimestamp(1500000000, 42)));
+    }
+
+    @Test
+    public void eventKeepsTheUpdateCriteria() {
+        Document entry = new Document("ts", new BsonTimestamp(1500000000, 1)).append("h", 12L).append("op", "u").append("ns", "db.coll")
+                .append("o2", new Document("_id", 1)).append("o", new Document("$set", new Document("a", 2)));
+        Document event = TailMongo.toEvent(entry);
+        assertEquals(Arrays.asList("ts", "op", "ns", "o", "o2"), Arrays.asList(event.keySet().toArray()));
+        assertEquals("1500000000:1", event.get("ts"));
+        assertEquals(new Document("_id", 1), event.get("o2"));
+    }
+
+    private TestRunner newRunner(String source) {
+        TestRunner runner = TestRunners.newTestRunner(TailMongo.class);
+        runner.setProperty("Mongo URI", uri);
+        runner.setProperty("Mongo Database Name", DATABASE);
+        runner.setProperty("Mongo Collection Name", collectionName);
+        runner.setProperty(TailMongo.TAIL_SOURCE, source);
+        runner.setProperty(TailMongo.START_AT, TailMongo.START_BEGINNING);
+        runner.setProperty(TailMongo.MAX_BATCH_WAIT, "500 ms");
+        return runner;
+    }
+
+    private static JSONArray content(MockFlowFile flowFile) {
+        return new JSONArray(new String(flowFile.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void tailsTheOplogFromTheBeginningAndResumesAfterTheStoredTs() throws Exception {
+        Assume.assumeNotNull(uri);
+        MongoCollection<Document> collection = client.getDatabase(DATABASE).getCollection(collectionName);
+        collection.insertMany(Arrays.asList(new Document("_id", 1), new Document("_id", 2), new Document("_id", 3)));
+
+        TestRunner runner = newRunner(TailMongo.SOURCE_OPLOG);
+        runner.run(1, false, true);
+        runner.assertAllFlowFilesTransferred(TailMongo.REL_SUCCESS, 1);
+        JSONArray events = content(runner.getFlowFilesForRelationship(TailMongo.REL_SUCCESS).get(0));
+        assertEquals(3, events.length());
+        for (int i = 0; i < events.length(); i++) {
+            assertEquals("i", events.getJSONObject(i).getString("op"));
+        }
+        String position = runner.getStateManager().getState(Scope.CLUSTER).get(TailMongo.TS_STATE);
+        assertNotNull(position);
+
+        // nothing new: the trigger waits on the server and emits nothing
+        runner.clearTransferState();
+        runner.run(1, false, false);
+        runner.assertTransferCount(TailMongo.REL_SUCCESS, 0);
+
+        collection.updateOne(new Document("_id", 2), new Document("$set", new Document("a", 1)));
+        runner.run(1, false, false);
+        runner.assertAllFlowFilesTransferred(TailMongo.REL_SUCCESS, 1);
+        events = content(runner.getFlowFilesForRelationship(TailMongo.REL_SUCCESS).get(0));
+        assertEquals(1, events.length());
+        assertEquals("u", events.getJSONObject(0).getString("op"));
+        runner.run(1, true, false);
+
+        // a new processor instance resumes from the stored ts only
+        collection.insertOne(new Document("_id", 4));
+        TestRunner resumed = newRunner(TailMongo.SOURCE_OPLOG);
+        resumed.getStateManager().setState(runner.getStateManager().getState(Scope.CLUSTER).toMap(), Scope.CLUSTER);
+        resumed.run(1, true, true);
+        List<MockFlowFile> flowFiles = resumed.getFlowFilesForRelationship(TailMongo.REL_SUCCESS);
+        assertEquals(1, flowFiles.size());
+        assertEquals(1, content(flowFiles.get(0)).length());
+    }
+
+    @Test
+    public void tailsACappedCollection() throws Exception {
+        Assume.assumeNotNull(uri);
+        client.getDatabase(DATABASE).createCollection(collectionName, new CreateCollectionOptions().capped(true).sizeInBytes(1024 * 1024));
+        MongoCollection<Document> collection = client.getDatabase(DATABASE).getCollection(collectionName);
+        collection.insertMany(Arrays.asList(new Document("_id", 1), new Document("_id", 2)));
+
+        TestRunner runner = newRunner(TailMongo.SOURCE_CAPPED);
+        runner.run(1, false, true);
+        runner.assertAllFlowFilesTransferred(TailMongo.REL_SUCCESS, 1);
+        assertEquals(2, content(runner.getFlowFilesForRelationship(TailMongo.REL_SUCCESS).get(0)).length());
+
+        runner.clearTransferState();
+        collection.insertOne(new Document("_id", 3));
+        runner.run(1, true, false);
+        runner.assertAllFlowFilesTransferred(TailMongo.REL_SUCCESS, 1);
+        assertEquals(3, content(runner.getFlowFilesForRelationship(TailMongo.REL_SUCCESS).get(0)).getJSONObject(0).getInt("_id"));
+        assertEquals("{ \"_id\" : 3 }", runner.getStateManager().getState(Scope.CLUSTER).get(TailMongo.LAST_ID_STATE));
+    }
+
+    @Test
+    public void resumesACappedCollectionInInsertionOrder() throws Exception {
+        Assume.assumeNotNull(uri);
+        client.getDatabase(DATABASE).createCollection(collectionName, new CreateCollectionOptions().capped(true).sizeInBytes(1024 * 1024));
+        MongoCollection<Document> collection = client.getDatabase(DATABASE).getCollection(collectionName);
+        // ids from several writers need not increase
+        collection.insertMany(Arrays.asList(new Document("_id", 1), new Document("_id", 5), new Document("_id", 2), new Document("_id", 3)));
+
+        TestRunner runner = newRunner(TailMongo.SOURCE_CAPPED);
+        runner.getStateManager().setState(Collections.singletonMap(TailMongo.LAST_ID_STATE, "{ \"_id\" : 5 }"), Scope.CLUSTER);
+        runner.run(1, true, true);
+
+        runner.assertAllFlowFilesTransferred(TailMongo.REL_SUCCESS, 1);
+        JSONArray documents = content(runner.getFlowFilesForRelationship(TailMongo.REL_SUCCESS).get(0));
+        assertEquals(2, documents.length());
+        assertEquals(2, documents.getJSONObject(0).getInt("_id"));
+        assertEquals(3, documents.getJSONObject(1).getInt("_id"));
+    }
+}
@@ -0,0 +1,47 @@
+package processors.bench;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Data and reporting shared by the benchmarks. Each benchmark is a main class run by hand; none
+ * of them is picked up by the test run.
+ */
+final class BenchFixtures {
+    static final int DOCUMENTS = 200000;
+
+    private BenchFixtures() {
+    }
+
+    /**
+     * Builds user-like documents mixing the types a typical collection holds: ObjectId, strings,
+     * numbers, dates, booleans, an array and an embedded document. The same seed always gives the
+     * same documents, apart from the ObjectIds and the lastSeen dates.
+     */
+    static List<Document> users(int count) {
+        List<Document> documents = new ArrayList<>(count);
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            documents.add(new Document("_id", new ObjectId())
+                    .append("name", "user-" + i)
+                    .append("address", "so " + random.nextInt(1000) + ", dinh cong, thanh xuan, ha noi")
+                    .append("score", random.nextDouble())
+                    .append("visits", random.nextInt(100000))
+                    .append("createdAt", new Date(1420070400000L + random.nextInt(Integer.MAX_VALUE)))
+                    .append("active", random.nextBoolean())
+                    .append("tags", Arrays.asList("a", "b", "c"))
+                    .append("device", new Document("os", "android").append("version", 7L).append("lastSeen", new Date())));
+        }
+        return documents;
+    }
+
+    static void report(String format, Object... args) {
+        System.out.println(String.format(format, args));
+    }
+}
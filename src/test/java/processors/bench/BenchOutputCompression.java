@@ -0,0 +1,48 @@
+package processors.bench;
+
+import org.apache.nifi.stream.io.ByteCountingOutputStream;
+import org.apache.nifi.stream.io.NullOutputStream;
+import org.bson.Document;
+import processors.JsonBatchWriter;
+import processors.OutputCompression;
+import processors.StandardJsonCodec;
+
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Compares the throughput and output size of writing a pretty-printed Standard JSON batch
+ * uncompressed, through gzip at a few levels, and through framed Snappy.
+ */
+public class BenchOutputCompression {
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        StandardJsonCodec codec = new StandardJsonCodec();
+        List<Document> documents = BenchFixtures.users(BenchFixtures.DOCUMENTS);
+
+        String[][] cases = {
+                {OutputCompression.NONE, "0"},
+                {OutputCompression.SNAPPY_FRAMED, "0"},
+                {OutputCompression.GZIP, "1"},
+                {OutputCompression.GZIP, "6"},
+                {OutputCompression.GZIP, "9"}};
+        for (int round = 0; round < ROUNDS; round++) {
+            for (String[] c : cases) {
+                ByteCountingOutputStream counting = new ByteCountingOutputStream(new NullOutputStream());
+                long start = System.nanoTime();
+                try (OutputStream out = OutputCompression.wrap(counting, c[0], Integer.parseInt(c[1]));
+                     JsonBatchWriter writer = new JsonBatchWriter(out, codec, "Standard", true)) {
+                    writer.writeStartArray();
+                    for (Document document : documents) {
+                        writer.write(document);
+                    }
+                    writer.writeEndArray();
+                }
+                long nanos = System.nanoTime() - start;
+                BenchFixtures.report("round %d: %-13s level %s: %5d ms, %6.1f docs/ms, %8d KB written",
+                        round, c[0], c[1], nanos / 1000000, BenchFixtures.DOCUMENTS / (nanos / 1e6), counting.getBytesWritten() / 1024);
+            }
+        }
+    }
+}
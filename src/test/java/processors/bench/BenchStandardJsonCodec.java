@@ -0,0 +1,66 @@
+package processors.bench;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.apache.nifi.processors.mongodb.ObjectIdSerializer;
+import org.apache.nifi.stream.io.NullOutputStream;
+import org.bson.Document;
+import processors.StandardJsonCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Compares the per-document cost of the old reflective ObjectMapper path against StandardJsonCodec
+ * writing into one reused generator, after checking that both produce the same bytes.
+ */
+public class BenchStandardJsonCodec {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.registerModule(ObjectIdSerializer.getModule());
+        mapper.setDateFormat(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"));
+        mapper.setTimeZone(TimeZone.getTimeZone("UTC"));
+        mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        StandardJsonCodec codec = new StandardJsonCodec();
+
+        List<Document> documents = BenchFixtures.users(BenchFixtures.DOCUMENTS);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        expected.write(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(documents.get(0)).getBytes("UTF-8"));
+        try (JsonGenerator generator = codec.createGenerator(actual)) {
+            generator.useDefaultPrettyPrinter();
+            codec.write(generator, documents.get(0));
+        }
+        if (!Arrays.equals(expected.toByteArray(), actual.toByteArray())) {
+            throw new IllegalStateException("Output differs:\n" + expected + "\n" + actual);
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            NullOutputStream sink = new NullOutputStream();
+            for (Document document : documents) {
+                sink.write(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(document).getBytes("UTF-8"));
+            }
+            long mapperNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            try (JsonGenerator generator = codec.createGenerator(new NullOutputStream())) {
+                generator.useDefaultPrettyPrinter();
+                for (Document document : documents) {
+                    codec.write(generator, document);
+                }
+            }
+            long codecNanos = System.nanoTime() - start;
+
+            BenchFixtures.report("round %d: mapper %d ns/doc, codec %d ns/doc, speedup %.2fx",
+                    round, mapperNanos / BenchFixtures.DOCUMENTS, codecNanos / BenchFixtures.DOCUMENTS, (double) mapperNanos / codecNanos);
+        }
+    }
+}